@@ -35,6 +35,7 @@ import java.util.TimeZone;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
+import ro.ciubex.propeditor.properties.BackupStore;
 import ro.ciubex.propeditor.properties.Entities;
 import ro.ciubex.propeditor.provider.CachedFileProvider;
 import ro.ciubex.propeditor.tasks.LogThread;
@@ -68,9 +69,11 @@ public class PropEditorApplication extends Application {
 	private final String TAG = getClass().getName();
 	private ProgressDialog mProgressDialog;
 	private Entities mProperties;
+	private Entities mLoadedProperties;
 	private String mWaitString;
 	private Locale mDefaultLocale;
 	private UnixCommands mUnixShell;
+	private BackupStore mBackupStore;
 	private SharedPreferences mSharedPreferences;
 	private boolean mMustRestart;
 
@@ -81,6 +84,9 @@ public class PropEditorApplication extends Application {
 	private static int mVersionCode = -1;
 	private static String mVersionName = null;
 
+	public static final String BACKUPS_FOLDER_NAME = "backups";
+	public static final int MAX_BACKUP_VERSIONS = 10;
+
 	public static final String LOGS_FOLDER_NAME = "logs";
 	public static final String LOG_FILE_NAME = "PropEditor_logs.log";
 	private File mLogsFolder;
@@ -335,6 +341,41 @@ public class PropEditorApplication extends Application {
 		return mProperties;
 	}
 
+	/**
+	 * Obtain a copy of the properties as they are on the file, when they were
+	 * loaded or last saved, used as base to merge the changes made on the
+	 * file meanwhile.
+	 * 
+	 * @return The loaded properties or null if are not known.
+	 */
+	public Entities getLoadedEntities() {
+		return mLoadedProperties;
+	}
+
+	/**
+	 * Keep a copy of the properties as they are on the file. The entities are
+	 * copied too, because the edited entities are changed in place.
+	 * 
+	 * @param properties
+	 *            The properties loaded or saved.
+	 */
+	public void setLoadedEntities(Entities properties) {
+		mLoadedProperties = properties != null ? properties.snapshot() : null;
+	}
+
+	/**
+	 * Obtain the store of the saved versions of the properties files.
+	 * 
+	 * @return The backup store.
+	 */
+	public BackupStore getBackupStore() {
+		if (mBackupStore == null) {
+			mBackupStore = new BackupStore(new File(getFilesDir(),
+					BACKUPS_FOLDER_NAME), MAX_BACKUP_VERSIONS);
+		}
+		return mBackupStore;
+	}
+
 	/**
 	 * Check for pro version.
 	 * 
@@ -18,12 +18,19 @@
  */
 package ro.ciubex.propeditor.activities;
 
+import java.io.IOException;
+import java.text.DateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
 import android.app.AlertDialog;
 import android.content.ActivityNotFoundException;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.view.View;
@@ -38,6 +45,7 @@ import ro.ciubex.propeditor.dialogs.EditorDialog;
 import ro.ciubex.propeditor.dialogs.SaveToDialog;
 import ro.ciubex.propeditor.list.PropertiesListAdapter;
 import ro.ciubex.propeditor.models.Constants;
+import ro.ciubex.propeditor.properties.BackupStore;
 import ro.ciubex.propeditor.properties.Entity;
 import ro.ciubex.propeditor.tasks.DefaultAsyncTaskResult;
 import ro.ciubex.propeditor.tasks.LoadPropertiesTask;
@@ -56,6 +64,7 @@ public class PropEditorActivity extends BaseActivity implements
     private EditText filterBox;
     private ListView propertiesList = null;
 
+    private static final String TAG = PropEditorActivity.class.getName();
     private static final int CONFIRM_ID_DELETE = 0;
     private static final int CONFIRM_ID_RESTORE = 1;
     private static final int CONFIRM_ID_RELOAD = 2;
@@ -64,6 +73,16 @@ public class PropEditorActivity extends BaseActivity implements
     private static final int CONFIRM_ID_ERROR_REPORT = 5;
     private static final int REQUEST_CODE_SETTINGS = 0;
     private static final int REQUEST_SEND_REPORT = 1;
+    private static final long FILTER_DELAY = 300;
+
+    private Handler mFilterHandler;
+    private CharSequence mFilterText;
+    private Runnable mFilterRunnable = new Runnable() {
+        @Override
+        public void run() {
+            applyFilter(mFilterText);
+        }
+    };
 
     private EditorDialog mEditorDialog;
 
@@ -83,13 +102,14 @@ public class PropEditorActivity extends BaseActivity implements
      * Prepare filter editor box
      */
     private void prepareFilterBox() {
+        mFilterHandler = new Handler();
         filterBox = (EditText) findViewById(R.id.filter_box);
         filterBox.addTextChangedListener(new TextWatcher() {
 
             @Override
             public void onTextChanged(CharSequence s, int start, int before,
                                       int count) {
-                applyFilter(s);
+                scheduleFilter(s);
             }
 
             @Override
@@ -104,15 +124,26 @@ public class PropEditorActivity extends BaseActivity implements
     }
 
     /**
-     * This method is invoked when the filter is edited
+     * This method is invoked when the filter is edited. The filter is applied
+     * only after the user stopped typing for a while, the previous pending
+     * request being replaced.
+     *
+     * @param charSequence The char sequence from the filter
+     */
+    private void scheduleFilter(CharSequence charSequence) {
+        mFilterText = charSequence.toString();
+        mFilterHandler.removeCallbacks(mFilterRunnable);
+        mFilterHandler.postDelayed(mFilterRunnable, FILTER_DELAY);
+    }
+
+    /**
+     * Apply the filter to the properties list.
      *
      * @param charSequence The char sequence from the filter
      */
     private void applyFilter(CharSequence charSequence) {
         if (adapter != null) {
-            mApplication.showProgressDialog(this, R.string.filtering);
-            adapter.getFilter().filter(charSequence);
-            mApplication.hideProgressDialog();
+            adapter.getFilter().request(charSequence);
         }
     }
 
@@ -148,10 +179,20 @@ public class PropEditorActivity extends BaseActivity implements
 
     @Override
     protected void onPause() {
+        mFilterHandler.removeCallbacks(mFilterRunnable);
         destroyEditorDialog();
         super.onPause();
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // the filter typed just before the pause was not applied yet
+        if (mFilterText != null) {
+            applyFilter(mFilterText);
+        }
+    }
+
     /**
      * Destroy the editor dialog.
      */
@@ -341,7 +382,8 @@ public class PropEditorActivity extends BaseActivity implements
                 doDeleteEntity(anObject);
                 break;
             case CONFIRM_ID_RESTORE:
-                new RestorePropertiesTask(this, PropEditorApplication.BUILD_PROP_PATH).execute();
+                new RestorePropertiesTask(this, PropEditorApplication.BUILD_PROP_PATH,
+                        (BackupStore.Version) anObject).execute();
                 break;
             case CONFIRM_ID_DONATE:
                 startBrowserWithPage(R.string.donate_url);
@@ -431,9 +473,50 @@ public class PropEditorActivity extends BaseActivity implements
      * This is invoked when the user chose the restore menu item.
      */
     private void onMenuItemRestore() {
-        showConfirmationDialog(R.string.restore,
-                mApplication.getString(R.string.restore_confirmation),
-                CONFIRM_ID_RESTORE, null);
+        List<BackupStore.Version> versions;
+        try {
+            versions = mApplication.getBackupStore().getVersions(
+                    PropEditorApplication.BUILD_PROP_PATH);
+        } catch (IOException e) {
+            mApplication.logE(TAG, "Unable to read the backup versions", e);
+            versions = Collections.emptyList();
+        }
+        if (versions.isEmpty()) {
+            showConfirmationDialog(R.string.restore,
+                    mApplication.getString(R.string.restore_confirmation),
+                    CONFIRM_ID_RESTORE, null);
+        } else {
+            showRestoreVersionDialog(versions);
+        }
+    }
+
+    /**
+     * Show the list of saved versions, the chosen version being restored
+     * after the confirmation.
+     *
+     * @param versions The saved versions, the newest first.
+     */
+    private void showRestoreVersionDialog(final List<BackupStore.Version> versions) {
+        DateFormat dateFormat = DateFormat.getDateTimeInstance(
+                DateFormat.MEDIUM, DateFormat.MEDIUM, mApplication.getDefaultLocale());
+        String[] items = new String[versions.size()];
+        for (int i = 0; i < items.length; i++) {
+            BackupStore.Version version = versions.get(i);
+            items[i] = getString(R.string.restore_version_item,
+                    dateFormat.format(new Date(version.getTime())), version.getSize());
+        }
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.restore_version);
+        builder.setItems(items,
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        showConfirmationDialog(R.string.restore,
+                                mApplication.getString(R.string.restore_confirmation),
+                                CONFIRM_ID_RESTORE, versions.get(which));
+                    }
+                });
+        mAlertDialog = builder.create();
+        mAlertDialog.show();
     }
 
     /**
@@ -465,6 +548,8 @@ public class PropEditorActivity extends BaseActivity implements
     @Override
     public void endSaveProperties(DefaultAsyncTaskResult result) {
         mApplication.hideProgressDialog();
+        // the properties could be merged with the changed file
+        reloadAdapter();
         if (Constants.OK == result.resultId) {
             mApplication.showMessageInfo(this, result.resultMessage);
         } else {
@@ -18,11 +18,11 @@
  */
 package ro.ciubex.propeditor.dialogs;
 
+import ro.ciubex.propeditor.PropEditorApplication;
 import ro.ciubex.propeditor.R;
 import ro.ciubex.propeditor.activities.PropEditorActivity;
 import ro.ciubex.propeditor.properties.Entities;
 import ro.ciubex.propeditor.properties.Entity;
-import ro.ciubex.propeditor.util.Utilities;
 import android.content.Context;
 import android.view.View;
 import android.widget.EditText;
@@ -81,24 +81,31 @@ public class EditorDialog extends BaseDialog {
 	}
 
 	/**
-	 * Save edited text to the entity.
+	 * Save edited text to the entity. Adding an already defined key will
+	 * change the existing property instead of defining the key twice: the
+	 * effective definition, when the key is defined more than once.
 	 */
 	private void onSave() {
 		String key = keyEdit.getText().toString();
 		String content = valueEdit.getText().toString();
 		if (key != null && key.length() > 0) {
-			if (entity == null) {
+			Entity existing = properties.getEffective(key);
+			if (entity == null && existing == null) {
 				entity = new Entity(key, content);
 				properties.add(entity);
 				properties.setModified(true);
 				((PropEditorActivity) parentActivity).reloadAdapter();
-			} else {
-				entity.setKey(key);
-				entity.setContent(content);
-				if (Utilities.stringEquals(key, entity.getKey())
-						|| Utilities.stringEquals(content, entity.getContent())) {
+			} else if (entity == null) {
+				if (properties.update(existing, key, content)) {
 					properties.setModified(true);
+					((PropEditorActivity) parentActivity).reloadAdapter();
 				}
+			} else if (existing != null && !key.equals(entity.getKey())) {
+				// renamed to a key used by another property
+				((PropEditorApplication) application).showMessageError(
+						parentActivity, R.string.property_key_exists, key);
+			} else if (properties.update(entity, key, content)) {
+				properties.setModified(true);
 			}
 		}
 	}
@@ -20,8 +20,10 @@ package ro.ciubex.propeditor.dialogs;
 
 import ro.ciubex.propeditor.PropEditorApplication;
 import ro.ciubex.propeditor.R;
+import ro.ciubex.propeditor.activities.PropEditorActivity;
 import ro.ciubex.propeditor.models.Constants;
 import ro.ciubex.propeditor.properties.Entities;
+import ro.ciubex.propeditor.tasks.ChangesetTask;
 import ro.ciubex.propeditor.tasks.DefaultAsyncTaskResult;
 import ro.ciubex.propeditor.tasks.SavePropertiesTask;
 import android.app.Application;
@@ -29,6 +31,7 @@ import android.content.Context;
 import android.os.Environment;
 import android.view.View;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.EditText;
 
 import java.io.File;
@@ -41,10 +44,15 @@ import java.io.File;
  * 
  */
 public class SaveToDialog extends BaseDialog implements
-		SavePropertiesTask.Responder, FolderBrowserDialog.FolderChosen {
+		SavePropertiesTask.Responder, ChangesetTask.Responder,
+		FolderBrowserDialog.FolderChosen {
+	private static final String CHANGESET_EXTENSION = ".changes";
 	private PropEditorApplication app;
 	private EditText folderPath;
 	private Button btnBrowse;
+	private Button btnImport;
+	private CheckBox exportChanges;
+	private CheckBox compressChanges;
 	private String fileName;
 	private Entities properties;
 
@@ -83,6 +91,10 @@ public class SaveToDialog extends BaseDialog implements
 		super.initDialog(layoutResID, titleId);
 		btnBrowse = (Button) findViewById(R.id.btn_browse);
 		btnBrowse.setOnClickListener(this);
+		btnImport = (Button) findViewById(R.id.btn_import);
+		btnImport.setOnClickListener(this);
+		exportChanges = (CheckBox) findViewById(R.id.export_changes);
+		compressChanges = (CheckBox) findViewById(R.id.compress_changes);
 	}
 
 	/**
@@ -126,6 +138,9 @@ public class SaveToDialog extends BaseDialog implements
 		} else if (btnOk == view) {
 			saveTo();
 			super.onClick(view);
+		} else if (btnImport == view) {
+			importChanges();
+			super.onClick(view);
 		} else {
 			super.onClick(view);
 		}
@@ -159,11 +174,16 @@ public class SaveToDialog extends BaseDialog implements
 	}
 
 	/**
-	 * Save current properties to the chosen folder.
+	 * Save current properties to the chosen folder, or only the changes from
+	 * the original file if it is chosen.
 	 */
 	private void saveTo() {
 		String content = getFolderPath();
-		if (content != null) {
+		if (content != null && exportChanges.isChecked()) {
+			new ChangesetTask(this, content + fileName + CHANGESET_EXTENSION,
+					PropEditorApplication.BUILD_PROP_PATH, properties, false,
+					compressChanges.isChecked()).execute();
+		} else if (content != null) {
 			new SavePropertiesTask(this, content + fileName, properties)
 					.execute();
 		} else {
@@ -171,6 +191,20 @@ public class SaveToDialog extends BaseDialog implements
 		}
 	}
 
+	/**
+	 * Import the changes file from the chosen folder.
+	 */
+	private void importChanges() {
+		String content = getFolderPath();
+		if (content != null) {
+			new ChangesetTask(this, content + fileName + CHANGESET_EXTENSION,
+					PropEditorApplication.BUILD_PROP_PATH, properties, true,
+					false).execute();
+		} else {
+			app.showMessageError(parentActivity, R.string.no_folder_path);
+		}
+	}
+
 	@Override
 	public Application getApplication() {
 		return app;
@@ -191,6 +225,24 @@ public class SaveToDialog extends BaseDialog implements
 		}
 	}
 
+	@Override
+	public void startChangeset() {
+		app.showProgressDialog(parentActivity, R.string.please_wait);
+	}
+
+	@Override
+	public void endChangeset(DefaultAsyncTaskResult result) {
+		app.hideProgressDialog();
+		if (Constants.OK == result.resultId) {
+			if (parentActivity instanceof PropEditorActivity) {
+				((PropEditorActivity) parentActivity).reloadAdapter();
+			}
+			app.showMessageInfo(parentActivity, result.resultMessage);
+		} else {
+			app.showMessageError(parentActivity, result.resultMessage);
+		}
+	}
+
 	@Override
 	public void setFolder(String folder) {
 		folderPath.setText(folder);
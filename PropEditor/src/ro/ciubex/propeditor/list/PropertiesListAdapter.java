@@ -27,7 +27,6 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.BaseAdapter;
-import android.widget.Filter;
 import android.widget.TextView;
 
 /**
@@ -163,7 +162,7 @@ public class PropertiesListAdapter extends BaseAdapter {
 	 * 
 	 * @return Adapter customized filter
 	 */
-	public Filter getFilter() {
+	public PropertiesListFilter getFilter() {
 		if (filter == null)
 			filter = new PropertiesListFilter(this);
 		return filter;
@@ -18,8 +18,13 @@
  */
 package ro.ciubex.propeditor.list;
 
+import java.util.List;
+import java.util.Locale;
+
 import ro.ciubex.propeditor.properties.Entities;
 import ro.ciubex.propeditor.properties.Entity;
+import ro.ciubex.propeditor.properties.Type;
+import android.os.SystemClock;
 import android.widget.Filter;
 
 /**
@@ -27,14 +32,54 @@ import android.widget.Filter;
  * 
  */
 public class PropertiesListFilter extends Filter {
+	private static final String TAG = PropertiesListFilter.class.getName();
+	private static final int STALE = -2;
+
+	/**
+	 * Only the filter passes slower than this, in milliseconds, are logged.
+	 */
+	private static final long SLOW_FILTER = 100;
+
 	private PropertiesListAdapter adapter;
+	private String lastFilter;
+	private Entities lastResult;
+	private int lastVersion;
+	private volatile int generation;
+	private volatile long requestTime;
+	private long lastLatency;
 
 	public PropertiesListFilter(PropertiesListAdapter adapter) {
 		this.adapter = adapter;
 	}
 
 	/**
-	 * Method used to filter the data according to the constraint.
+	 * Start an asynchronous filtering request. A filtering pass still running
+	 * for a previous request is abandoned and its results are not published.
+	 * 
+	 * @param constraint
+	 *            The specified constraint.
+	 */
+	public void request(CharSequence constraint) {
+		requestTime = SystemClock.elapsedRealtime();
+		generation++;
+		filter(constraint);
+	}
+
+	/**
+	 * Get the time spent by the last published filtering request, from the
+	 * request until the results were published.
+	 * 
+	 * @return The last filtering latency in milliseconds.
+	 */
+	public long getLastLatency() {
+		return lastLatency;
+	}
+
+	/**
+	 * Method used to filter the data according to the constraint. When the
+	 * new filter contains the previous one, and the properties were not
+	 * changed meanwhile, only the previous result is filtered again, otherwise
+	 * the properties search index is used.
 	 * 
 	 * @param constraint
 	 *            The specified constraint.
@@ -42,6 +87,7 @@ public class PropertiesListFilter extends Filter {
 	 */
 	@Override
 	protected FilterResults performFiltering(CharSequence constraint) {
+		int current = generation;
 		FilterResults results = new FilterResults();
 		results.values = null;
 		results.count = -1;
@@ -49,35 +95,44 @@ public class PropertiesListFilter extends Filter {
 		if (constraint.length() > 0 && !properties.isEmpty()) {
 			String filter = constraint.toString().trim();
 			if (filter.length() > 0) {
-				filter = filter.toLowerCase(adapter.getApplication()
-						.getDefaultLocale());
+				Locale locale = adapter.getApplication().getDefaultLocale();
+				filter = filter.toLowerCase(locale);
 				Entities newProperties = new Entities();
-				String key, value;
-				for (Entity entry : properties.getProperties()) {
-					key = entry.getKey();
-					if (key != null) {
-						key = key.toLowerCase(adapter.getApplication()
-								.getDefaultLocale());
+				List<Entity> found;
+				boolean verify = true;
+				if (lastResult != null && lastVersion == properties.getVersion()
+						&& filter.contains(lastFilter)) {
+					found = lastResult.getProperties();
+				} else {
+					found = properties.search(filter, locale);
+					if (found != null) {
+						verify = false;
 					} else {
-						key = "";
+						found = properties.getProperties();
 					}
-					value = entry.getContent();
-					if (value != null) {
-						value = value.toLowerCase(adapter.getApplication()
-								.getDefaultLocale());
-					} else {
-						value = "";
+				}
+				int checked = 0;
+				for (Entity entry : found) {
+					if ((++checked & 0xFF) == 0 && current != generation) {
+						results.count = STALE;
+						return results;
 					}
-					if (key.indexOf(filter) > -1 || value.indexOf(filter) > -1) {
+					if (!verify || (Type.PROPERTY == entry.getType()
+							&& entry.matches(filter, locale))) {
 						newProperties.add(entry);
 					}
 				}
+				lastFilter = filter;
+				lastResult = newProperties;
+				lastVersion = properties.getVersion();
 				results.count = newProperties.size();
 				if (results.count > 0) {
 					results.values = newProperties;
 				}
 			}
 		} else if (!properties.isEmpty()) {
+			lastFilter = null;
+			lastResult = null;
 			results.count = properties.size();
 			results.values = properties.clone();
 		}
@@ -95,6 +150,14 @@ public class PropertiesListFilter extends Filter {
 	 */
 	@Override
 	protected void publishResults(CharSequence constraint, FilterResults results) {
+		if (results.count == STALE) {
+			return;
+		}
+		lastLatency = SystemClock.elapsedRealtime() - requestTime;
+		if (lastLatency > SLOW_FILTER) {
+			adapter.getApplication().logD(TAG, "Filter \"" + constraint
+					+ "\" published in " + lastLatency + " ms");
+		}
 		if (results.count > -1) {
 			adapter.setProperties((Entities) results.values);
 			adapter.notifyDataSetChanged();
@@ -0,0 +1,436 @@
+/**
+ * This file is part of PropEditor application.
+ * 
+ * Copyright (C) 2016 Claudiu Ciobotariu
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ro.ciubex.propeditor.properties;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A store keeping the last versions of the properties files. The files are
+ * split in chunks of lines, the chunk boundaries being chosen by the lines
+ * content, so a changed line changes only its chunk. Every chunk is saved
+ * once, named by its digest, and the versions are only lists of chunks kept
+ * on an index file, loaded once.
+ * 
+ * @author Claudiu Ciobotariu
+ * 
+ */
+public class BackupStore {
+	private static final String INDEX_FILE = "index";
+	private static final String CHUNKS_FOLDER = "chunks";
+	private static final char SEPARATOR = '\t';
+	private static final String CHARSET = "UTF-8";
+
+	/**
+	 * A chunk ends after a line having the FNV-1a hash bits selected by this
+	 * mask zero, about one line from eight, or when it is too big.
+	 */
+	private static final int BOUNDARY_MASK = 0x70000;
+	private static final int FNV_OFFSET = 0x811c9dc5;
+	private static final int FNV_PRIME = 16777619;
+	private static final int MAX_CHUNK_SIZE = 8192;
+
+	/**
+	 * A saved version of a file.
+	 */
+	public static class Version {
+		private long id;
+		private long time;
+		private long size;
+		private String digest;
+		private String[] chunks;
+		private String sourceFile;
+
+		Version(long id, long time, long size, String digest,
+				String[] chunks, String sourceFile) {
+			this.id = id;
+			this.time = time;
+			this.size = size;
+			this.digest = digest;
+			this.chunks = chunks;
+			this.sourceFile = sourceFile;
+		}
+
+		public long getId() {
+			return id;
+		}
+
+		/**
+		 * Get the time when the version was saved.
+		 * 
+		 * @return The time in milliseconds.
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * Get the file size of this version.
+		 * 
+		 * @return The size in bytes.
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		public String getSourceFile() {
+			return sourceFile;
+		}
+	}
+
+	private File folder;
+	private File chunksFolder;
+	private int maxVersions;
+	private List<Version> versions;
+	private long lastId;
+
+	/**
+	 * The store constructor.
+	 * 
+	 * @param folder
+	 *            The folder where the versions are saved.
+	 * @param maxVersions
+	 *            The number of kept versions of each file, the oldest being
+	 *            removed when a new version is added.
+	 */
+	public BackupStore(File folder, int maxVersions) {
+		this.folder = folder;
+		this.maxVersions = maxVersions > 0 ? maxVersions : 1;
+		chunksFolder = new File(folder, CHUNKS_FOLDER);
+	}
+
+	/**
+	 * Obtain the saved versions of a file.
+	 * 
+	 * @param sourceFile
+	 *            The file name.
+	 * @return The versions, the newest first.
+	 * @throws IOException
+	 *             If the index could not be read.
+	 */
+	public synchronized List<Version> getVersions(String sourceFile)
+			throws IOException {
+		List<Version> result = new ArrayList<Version>();
+		for (Version version : getIndex()) {
+			if (version.sourceFile.equals(sourceFile)) {
+				result.add(version);
+			}
+		}
+		Collections.reverse(result);
+		return result;
+	}
+
+	/**
+	 * Save a new version of a file. If the file content is the same as the
+	 * last saved version, no version is added.
+	 * 
+	 * @param sourceFile
+	 *            The name of the file.
+	 * @param file
+	 *            The readable file, the original or a copy of it.
+	 * @return The saved version.
+	 * @throws IOException
+	 *             If the file could not be read or the version could not be
+	 *             saved.
+	 */
+	public synchronized Version add(String sourceFile, File file)
+			throws IOException {
+		byte[] content = readFile(file);
+		String digest = toHex(newDigest().digest(content));
+		List<Version> index = getIndex();
+		Version last = null;
+		for (Version version : index) {
+			if (version.sourceFile.equals(sourceFile)) {
+				last = version;
+			}
+		}
+		if (last != null && last.digest.equals(digest)) {
+			return last;
+		}
+		String[] chunks = writeChunks(content);
+		Version version = new Version(++lastId, System.currentTimeMillis(),
+				content.length, digest, chunks, sourceFile);
+		index.add(version);
+		List<Version> removed = trimVersions(sourceFile);
+		writeIndex();
+		removeChunks(removed);
+		return version;
+	}
+
+	/**
+	 * Write the content of a saved version.
+	 * 
+	 * @param version
+	 *            The version to be restored.
+	 * @param file
+	 *            The file where the content is written.
+	 * @throws IOException
+	 *             If a chunk is missing or the restored content is not the
+	 *             saved one.
+	 */
+	public synchronized void restore(Version version, File file)
+			throws IOException {
+		MessageDigest messageDigest = newDigest();
+		OutputStream out = new FileOutputStream(file);
+		try {
+			for (String chunk : version.chunks) {
+				byte[] data = readFile(new File(chunksFolder, chunk));
+				messageDigest.update(data);
+				out.write(data);
+			}
+		} finally {
+			out.close();
+		}
+		if (!version.digest.equals(toHex(messageDigest.digest()))) {
+			file.delete();
+			throw new IOException("Corrupted backup version " + version.id);
+		}
+	}
+
+	/**
+	 * Split the content in chunks and save the chunks not already saved.
+	 */
+	private String[] writeChunks(byte[] content) throws IOException {
+		if (!chunksFolder.exists() && !chunksFolder.mkdirs()) {
+			throw new IOException("Unable to create " + chunksFolder);
+		}
+		List<String> chunks = new ArrayList<String>();
+		MessageDigest messageDigest = newDigest();
+		int start = 0, pos = 0, hash = FNV_OFFSET;
+		byte c;
+		while (pos < content.length) {
+			c = content[pos++];
+			hash = (hash ^ (c & 0xFF)) * FNV_PRIME;
+			boolean lineEnd = c == '\n';
+			if ((lineEnd && (hash & BOUNDARY_MASK) == 0)
+					|| pos - start >= MAX_CHUNK_SIZE || pos == content.length) {
+				messageDigest.update(content, start, pos - start);
+				String name = toHex(messageDigest.digest());
+				File chunk = new File(chunksFolder, name);
+				if (!chunk.exists()) {
+					writeFile(chunk, content, start, pos - start);
+				}
+				chunks.add(name);
+				start = pos;
+			}
+			if (lineEnd) {
+				hash = FNV_OFFSET;
+			}
+		}
+		return chunks.toArray(new String[chunks.size()]);
+	}
+
+	/**
+	 * Remove the oldest versions of a file over the maximum number of
+	 * versions.
+	 * 
+	 * @return The removed versions.
+	 */
+	private List<Version> trimVersions(String sourceFile) {
+		int count = 0;
+		for (Version version : versions) {
+			if (version.sourceFile.equals(sourceFile)) {
+				count++;
+			}
+		}
+		List<Version> removed = new ArrayList<Version>();
+		for (int i = 0; count > maxVersions && i < versions.size();) {
+			Version version = versions.get(i);
+			if (version.sourceFile.equals(sourceFile)) {
+				versions.remove(i);
+				removed.add(version);
+				count--;
+			} else {
+				i++;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Delete the chunks of the removed versions, not used anymore by the
+	 * kept versions.
+	 */
+	private void removeChunks(List<Version> removed) {
+		if (removed.isEmpty()) {
+			return;
+		}
+		Set<String> used = new HashSet<String>();
+		for (Version version : versions) {
+			used.addAll(Arrays.asList(version.chunks));
+		}
+		for (Version version : removed) {
+			for (String chunk : version.chunks) {
+				if (used.add(chunk)) {
+					new File(chunksFolder, chunk).delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Obtain the versions list, reading the index file on the first call.
+	 */
+	private List<Version> getIndex() throws IOException {
+		if (versions == null) {
+			versions = readIndex();
+		}
+		return versions;
+	}
+
+	/**
+	 * Read the index file, one version on each line: the id, the time, the
+	 * size, the digest, the chunks and the source file name.
+	 */
+	private List<Version> readIndex() throws IOException {
+		List<Version> list = new ArrayList<Version>();
+		File file = new File(folder, INDEX_FILE);
+		if (!file.exists()) {
+			return list;
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), CHARSET));
+		try {
+			String line;
+			String[] fields;
+			while ((line = reader.readLine()) != null) {
+				fields = line.split(String.valueOf(SEPARATOR), 6);
+				if (fields.length < 6) {
+					continue;
+				}
+				try {
+					Version version = new Version(Long.parseLong(fields[0]),
+							Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+							fields[3], fields[4].length() > 0 ? fields[4]
+									.split(",") : new String[0], fields[5]);
+					lastId = Math.max(lastId, version.id);
+					list.add(version);
+				} catch (NumberFormatException e) {
+					/* skip the damaged line */
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return list;
+	}
+
+	/**
+	 * Write the index on a temporary file, renamed over the old index.
+	 */
+	private void writeIndex() throws IOException {
+		File file = new File(folder, INDEX_FILE);
+		File temp = new File(folder, INDEX_FILE + ".tmp");
+		Writer writer = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(temp), CHARSET));
+		try {
+			for (Version version : versions) {
+				writer.write(String.valueOf(version.id));
+				writer.write(SEPARATOR);
+				writer.write(String.valueOf(version.time));
+				writer.write(SEPARATOR);
+				writer.write(String.valueOf(version.size));
+				writer.write(SEPARATOR);
+				writer.write(version.digest);
+				writer.write(SEPARATOR);
+				for (int i = 0; i < version.chunks.length; i++) {
+					if (i > 0) {
+						writer.write(',');
+					}
+					writer.write(version.chunks[i]);
+				}
+				writer.write(SEPARATOR);
+				writer.write(version.sourceFile);
+				writer.write('\n');
+			}
+		} finally {
+			writer.close();
+		}
+		if (!temp.renameTo(file)) {
+			throw new IOException("Unable to write " + file);
+		}
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			long length = file.length();
+			byte[] data = new byte[(int) length];
+			int len = 0, read;
+			while (len < data.length
+					&& (read = in.read(data, len, data.length - len)) > -1) {
+				len += read;
+			}
+			if (len < data.length) {
+				throw new IOException("Unable to read " + file);
+			}
+			return data;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeFile(File file, byte[] data, int offset,
+			int length) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		OutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(data, offset, length);
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			throw new IOException("Unable to write " + file);
+		}
+	}
+
+	private static MessageDigest newDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance(Entities.DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	private static String toHex(byte[] data) {
+		char[] hex = new char[data.length * 2];
+		for (int i = 0; i < data.length; i++) {
+			hex[i * 2] = Character.forDigit((data[i] >> 4) & 0xF, 16);
+			hex[i * 2 + 1] = Character.forDigit(data[i] & 0xF, 16);
+		}
+		return new String(hex);
+	}
+}
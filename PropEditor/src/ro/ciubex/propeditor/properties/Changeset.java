@@ -0,0 +1,174 @@
+/**
+ * This file is part of PropEditor application.
+ * 
+ * Copyright (C) 2016 Claudiu Ciobotariu
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ro.ciubex.propeditor.properties;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A batch of changes to be applied on the properties with
+ * {@link Entities#apply(Changeset)}: set a property, delete a property or
+ * insert a comment after a property.
+ * 
+ * @author Claudiu Ciobotariu
+ * 
+ */
+public class Changeset {
+
+	/**
+	 * The operation made by a change.
+	 */
+	public enum Operation {
+		SET, DELETE, INSERT_COMMENT
+	}
+
+	/**
+	 * A change of the changeset.
+	 */
+	public static class Change {
+		private Operation operation;
+		private String key;
+		private String value;
+
+		Change(Operation operation, String key, String value) {
+			this.operation = operation;
+			this.key = key;
+			this.value = value;
+		}
+
+		public Operation getOperation() {
+			return operation;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		/**
+		 * Get the property content for a SET change, or the comment text for
+		 * an INSERT_COMMENT change.
+		 * 
+		 * @return The change value, null for a DELETE change.
+		 */
+		public String getValue() {
+			return value;
+		}
+	}
+
+	private List<Change> changes;
+
+	public Changeset() {
+		changes = new ArrayList<Change>();
+	}
+
+	/**
+	 * Create the changeset of the properties changed from a stock version:
+	 * the added or changed properties are set and the removed properties are
+	 * deleted.
+	 * 
+	 * @param stock
+	 *            The stock properties, for example the original file.
+	 * @param edited
+	 *            The edited properties.
+	 * @return The changeset transforming the stock properties in the edited
+	 *         properties.
+	 */
+	public static Changeset diff(Entities stock, Entities edited) {
+		Changeset changeset = new Changeset();
+		for (EntitiesDiff.Change change : EntitiesDiff.compare(stock, edited)
+				.getChanges()) {
+			if (Type.PROPERTY != change.getType()) {
+				continue;
+			}
+			switch (change.getKind()) {
+			case ADDED:
+			case CHANGED:
+				changeset.set(change.getKey(), change.getNewEntity()
+						.getContent());
+				break;
+			case REMOVED:
+				changeset.delete(change.getKey());
+				break;
+			default:
+				break;
+			}
+		}
+		return changeset;
+	}
+
+	/**
+	 * Set the content of a property, the property being added at the end if
+	 * it is not defined.
+	 * 
+	 * @param key
+	 *            The property key.
+	 * @param value
+	 *            The property content.
+	 * @return This changeset.
+	 */
+	public Changeset set(String key, String value) {
+		changes.add(new Change(Operation.SET, key, value));
+		return this;
+	}
+
+	/**
+	 * Delete all the definitions of a property.
+	 * 
+	 * @param key
+	 *            The property key.
+	 * @return This changeset.
+	 */
+	public Changeset delete(String key) {
+		changes.add(new Change(Operation.DELETE, key, null));
+		return this;
+	}
+
+	/**
+	 * Insert a comment line after a property, or at the end if the property
+	 * is not defined.
+	 * 
+	 * @param key
+	 *            The key of the property followed by the comment.
+	 * @param comment
+	 *            The comment text, without the leading <code>#</code>.
+	 * @return This changeset.
+	 */
+	public Changeset insertComment(String key, String comment) {
+		changes.add(new Change(Operation.INSERT_COMMENT, key, comment));
+		return this;
+	}
+
+	/**
+	 * Obtain the changes, in the order they were added.
+	 * 
+	 * @return The changes list.
+	 */
+	public List<Change> getChanges() {
+		return Collections.unmodifiableList(changes);
+	}
+
+	public int size() {
+		return changes.size();
+	}
+
+	public boolean isEmpty() {
+		return changes.isEmpty();
+	}
+}
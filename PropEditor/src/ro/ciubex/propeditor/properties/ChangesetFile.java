@@ -0,0 +1,245 @@
+/**
+ * This file is part of PropEditor application.
+ * 
+ * Copyright (C) 2016 Claudiu Ciobotariu
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ro.ciubex.propeditor.properties;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compact binary file format of a {@link Changeset}. The file starts with a
+ * header: a magic number, the format version and the flags. The changes
+ * follow, optionally deflated: the number of changes, then each change
+ * sorted by key, as an operation byte and the key and value written as UTF-8
+ * strings prefixed by their variable length byte count.
+ * 
+ * @author Claudiu Ciobotariu
+ * 
+ */
+public class ChangesetFile {
+	private static final int MAGIC = 0x50454353;
+	private static final int FORMAT_VERSION = 1;
+	private static final int FLAG_DEFLATE = 1;
+	private static final String ENCODING = "UTF-8";
+
+	/**
+	 * The maximum length in bytes of a key or value, checked before the text
+	 * is read, so a corrupted file can not allocate a huge buffer.
+	 */
+	static final int MAX_TEXT_LENGTH = 64 * 1024;
+
+	/**
+	 * The changes are sorted by key, keeping the order of the changes of the
+	 * same key.
+	 */
+	private static final Comparator<Changeset.Change> KEY_ORDER = new Comparator<Changeset.Change>() {
+		@Override
+		public int compare(Changeset.Change change1, Changeset.Change change2) {
+			return change1.getKey().compareTo(change2.getKey());
+		}
+	};
+
+	/**
+	 * Write a changeset. The changes are written one by one to the output,
+	 * which is not closed. The deflater native memory is released at the
+	 * end, without waiting for the garbage collector.
+	 * 
+	 * @param changeset
+	 *            The changeset to be written.
+	 * @param outputStream
+	 *            The output stream.
+	 * @param deflate
+	 *            True if the changes should be compressed.
+	 * @throws IOException
+	 *             If writing to the output fails.
+	 */
+	public static void write(Changeset changeset, OutputStream outputStream,
+			boolean deflate) throws IOException {
+		List<Changeset.Change> changes = new ArrayList<Changeset.Change>(
+				changeset.getChanges());
+		Collections.sort(changes, KEY_ORDER);
+		DataOutputStream header = new DataOutputStream(outputStream);
+		header.writeInt(MAGIC);
+		header.writeByte(FORMAT_VERSION);
+		header.writeByte(deflate ? FLAG_DEFLATE : 0);
+		header.flush();
+		Deflater deflater = deflate ? new Deflater() : null;
+		try {
+			DeflaterOutputStream deflaterStream = null;
+			OutputStream body = outputStream;
+			if (deflater != null) {
+				deflaterStream = new DeflaterOutputStream(outputStream, deflater);
+				body = deflaterStream;
+			}
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(body));
+			writeLength(out, changes.size());
+			for (Changeset.Change change : changes) {
+				out.writeByte(change.getOperation().ordinal());
+				writeString(out, change.getKey());
+				if (Changeset.Operation.DELETE != change.getOperation()) {
+					writeString(out, change.getValue());
+				}
+			}
+			out.flush();
+			if (deflaterStream != null) {
+				// finish the compressed data without closing the output
+				deflaterStream.finish();
+			}
+			outputStream.flush();
+		} finally {
+			if (deflater != null) {
+				deflater.end();
+			}
+		}
+	}
+
+	/**
+	 * Read a changeset.
+	 * 
+	 * @param inputStream
+	 *            The input stream, not closed. The inflater native memory is
+	 *            released at the end.
+	 * @return The changeset read.
+	 * @throws IOException
+	 *             If the input is not a valid changeset file.
+	 */
+	public static Changeset read(InputStream inputStream) throws IOException {
+		DataInputStream header = new DataInputStream(inputStream);
+		if (header.readInt() != MAGIC) {
+			throw new IOException("Not a changeset file");
+		}
+		int version = header.readUnsignedByte();
+		if (version != FORMAT_VERSION) {
+			throw new IOException("Unsupported changeset version " + version);
+		}
+		Inflater inflater = null;
+		InputStream body = inputStream;
+		if ((header.readUnsignedByte() & FLAG_DEFLATE) != 0) {
+			inflater = new Inflater();
+			body = new InflaterInputStream(inputStream, inflater);
+		}
+		try {
+			return readChanges(new DataInputStream(new BufferedInputStream(
+					body)));
+		} finally {
+			if (inflater != null) {
+				inflater.end();
+			}
+		}
+	}
+
+	/**
+	 * Read the changes following the header.
+	 */
+	private static Changeset readChanges(DataInputStream in)
+			throws IOException {
+		Changeset changeset = new Changeset();
+		Changeset.Operation[] operations = Changeset.Operation.values();
+		int count = readLength(in);
+		int operation;
+		String key;
+		for (int i = 0; i < count; i++) {
+			operation = in.readUnsignedByte();
+			if (operation >= operations.length) {
+				throw new IOException("Invalid changeset operation " + operation);
+			}
+			key = readString(in);
+			switch (operations[operation]) {
+			case SET:
+				changeset.set(key, readString(in));
+				break;
+			case DELETE:
+				changeset.delete(key);
+				break;
+			case INSERT_COMMENT:
+				changeset.insertComment(key, readString(in));
+				break;
+			}
+		}
+		return changeset;
+	}
+
+	private static void writeString(DataOutputStream out, String text)
+			throws IOException {
+		byte[] bytes = (text != null ? text : "").getBytes(ENCODING);
+		if (bytes.length > MAX_TEXT_LENGTH) {
+			throw new IOException("Changeset text too long: " + bytes.length);
+		}
+		writeLength(out, bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = readLength(in);
+		if (length > MAX_TEXT_LENGTH) {
+			throw new IOException("Invalid changeset text length " + length);
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, ENCODING);
+	}
+
+	/**
+	 * Write a length using seven bits on each byte, the highest bit being set
+	 * if more bytes follow.
+	 */
+	private static void writeLength(DataOutputStream out, int length)
+			throws IOException {
+		while ((length & ~0x7F) != 0) {
+			out.writeByte((length & 0x7F) | 0x80);
+			length >>>= 7;
+		}
+		out.writeByte(length);
+	}
+
+	private static int readLength(DataInputStream in) throws IOException {
+		int length = 0;
+		int shift = 0;
+		int b;
+		do {
+			if (shift > 28) {
+				throw new IOException("Invalid changeset length");
+			}
+			b = in.read();
+			if (b < 0) {
+				throw new EOFException();
+			}
+			length |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		if (length < 0) {
+			throw new IOException("Invalid changeset length");
+		}
+		return length;
+	}
+}
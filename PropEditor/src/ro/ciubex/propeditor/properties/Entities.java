@@ -18,13 +18,23 @@
  */
 package ro.ciubex.propeditor.properties;
 
-import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.Reader;
+import java.io.OutputStream;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 /**
  * This is a replacement for the java.util.Properties class.
@@ -34,37 +44,116 @@ import java.util.List;
  */
 public class Entities implements Cloneable {
 
+	/**
+	 * The algorithm used to compute the digest of the loaded and saved files.
+	 */
+	public static final String DIGEST_ALGORITHM = "SHA-1";
+
 	/**
 	 * On entities list will be stored all lines from properties file:
 	 * properties, comments and empty lines
 	 */
 	List<Entity> entities;
 	private boolean modified;
+	private int version;
 	int count;
 
+	/**
+	 * Physical offsets on the entities list of all PROPERTY entries, used for
+	 * the positional access. Only the first count values are meaningful.
+	 */
+	private int[] propertyOffsets;
+	private boolean propertyOffsetsValid;
+
+	/**
+	 * Key index of the PROPERTY entries: the first definition of each key and
+	 * all the definitions of the keys defined more than once. The index is
+	 * built on the first use, so loading does not need to decode the keys.
+	 */
+	private Map<String, Entity> keys;
+	private Map<String, List<Entity>> duplicates;
+
+	/**
+	 * Flag set when the lists are shared with a clone, and should be copied
+	 * before the first change.
+	 */
+	private boolean shared;
+
+	/**
+	 * The substring search index, built on the first search.
+	 */
+	private SearchIndex searchIndex;
+
+	/**
+	 * The digest of the file content from where the entities were loaded, or
+	 * of the content last saved to it.
+	 */
+	private String digestFile;
+	private byte[] digest;
+
 	/**
 	 * On the constructor are initialized the lists.
 	 */
 	public Entities() {
 		entities = new ArrayList<Entity>();
 		count = 0;
+		propertyOffsets = new int[16];
+		propertyOffsetsValid = true;
 	}
 
 	/**
 	 * Removes all elements from both lists, leaving them empty.
 	 */
-	public void clear() {
+	public synchronized void clear() {
+		version++;
+		searchIndex = null;
 		count = 0;
-		entities.clear();
+		propertyOffsetsValid = true;
+		keys = null;
+		duplicates = null;
+		digestFile = null;
+		digest = null;
+		if (shared) {
+			entities = new ArrayList<Entity>();
+			propertyOffsets = new int[16];
+			shared = false;
+		} else {
+			entities.clear();
+		}
 	}
 
 	/**
-	 * Get the properties list
+	 * Make a private copy of the lists shared with a clone, before changing
+	 * them.
+	 */
+	private void ensureOwned() {
+		if (shared) {
+			entities = new ArrayList<Entity>(entities);
+			int[] offsets = new int[propertyOffsets.length];
+			System.arraycopy(propertyOffsets, 0, offsets, 0, count);
+			propertyOffsets = offsets;
+			if (keys != null) {
+				keys = new HashMap<String, Entity>(keys);
+				Map<String, List<Entity>> copy = new HashMap<String, List<Entity>>();
+				for (Map.Entry<String, List<Entity>> entry : duplicates
+						.entrySet()) {
+					copy.put(entry.getKey(),
+							new ArrayList<Entity>(entry.getValue()));
+				}
+				duplicates = copy;
+			}
+			shared = false;
+		}
+	}
+
+	/**
+	 * Get the properties list. The list is read only, the changes should be
+	 * made through this class methods.
 	 * 
 	 * @return The properties list
 	 */
 	public List<Entity> getProperties() {
-		return entities;
+		return Collections.unmodifiableList(entities);
 	}
 
 	/**
@@ -93,18 +182,48 @@ public class Entities implements Cloneable {
 	 * @return The entity at the specified location.
 	 */
 	public Entity getProperty(int location) {
-		Entity entity = null;
-		int i = 0, p;
-		for (p = 0; p < entities.size(); p++) {
-			entity = entities.get(p);
-			if (entity.getType() == Type.PROPERTY) {
-				if (i == location) {
-					break;
-				}
-				i++;
+		if (location < 0 || location >= count) {
+			return null;
+		}
+		if (!propertyOffsetsValid) {
+			rebuildPropertyOffsets();
+		}
+		return entities.get(propertyOffsets[location]);
+	}
+
+	/**
+	 * Rebuild the physical offsets of the PROPERTY entries.
+	 */
+	private void rebuildPropertyOffsets() {
+		int i = 0, p, size = entities.size();
+		if (propertyOffsets.length < count) {
+			propertyOffsets = new int[count];
+		}
+		for (p = 0; p < size; p++) {
+			if (entities.get(p).getType() == Type.PROPERTY) {
+				propertyOffsets[i++] = p;
+			}
+		}
+		propertyOffsetsValid = true;
+	}
+
+	/**
+	 * Append a physical offset of a PROPERTY entry to the offsets array.
+	 * 
+	 * @param offset
+	 *            The physical offset of the entry on the entities list.
+	 */
+	private void appendPropertyOffset(int offset) {
+		if (count == propertyOffsets.length) {
+			int newLength = propertyOffsets.length * 2;
+			if (newLength < 0) {
+				newLength = Integer.MAX_VALUE;
 			}
+			int[] buf = new int[newLength];
+			System.arraycopy(propertyOffsets, 0, buf, 0, count);
+			propertyOffsets = buf;
 		}
-		return entity;
+		propertyOffsets[count] = offset;
 	}
 
 	/**
@@ -113,28 +232,52 @@ public class Entities implements Cloneable {
 	 * @param entity
 	 *            The entity to add.
 	 */
-	public void add(Entity entity) {
+	public synchronized void add(Entity entity) {
 		if (entity != null) {
+			ensureOwned();
+			version++;
 			entities.add(entity);
 			if (Type.PROPERTY == entity.getType()) {
+				if (propertyOffsetsValid) {
+					appendPropertyOffset(entities.size() - 1);
+				}
 				count++;
+				if (keys != null) {
+					indexKey(entity);
+				}
+				if (searchIndex != null) {
+					searchIndex.add(entity);
+				}
 			}
 		}
 	}
 
 	/**
-	 * Removes the first occurrence of the specified entity from the both lists.
+	 * Removes the specified entity from the both lists.
 	 * 
 	 * @param entity
 	 *            The entity to remove.
 	 */
-	public void remove(Entity entity) {
+	public synchronized void remove(Entity entity) {
 		if (entity != null) {
-			entities.remove(entity);
-			if (Type.PROPERTY == entity.getType()) {
-				count--;
-				if (count < 0) {
-					count = 0;
+			int p = indexOf(entity);
+			if (p > -1) {
+				ensureOwned();
+				version++;
+				entities.remove(p);
+				// the following offsets are shifted, rebuild them on demand
+				propertyOffsetsValid = false;
+				if (Type.PROPERTY == entity.getType()) {
+					count--;
+					if (count < 0) {
+						count = 0;
+					}
+					if (keys != null) {
+						unindexKey(entity, entity.getKey());
+					}
+					if (searchIndex != null) {
+						searchIndex.remove(entity);
+					}
 				}
 			}
 		}
@@ -151,295 +294,635 @@ public class Entities implements Cloneable {
 	}
 
 	/**
+	 * Removes all the properties defined with the specified key. The
+	 * definitions are found on the key index and removed in a single pass
+	 * over the list.
 	 * 
+	 * @param key
+	 *            The key of the properties to remove.
+	 * @return The number of removed properties.
 	 */
-	@Override
-	public synchronized Object clone() {
-		Entities ent = new Entities();
-		for (Entity entity : entities) {
-			ent.add(entity);
+	public synchronized int removeKey(String key) {
+		ensureKeys();
+		Entity first = keys.get(key);
+		if (first == null) {
+			return 0;
 		}
-		return ent;
+		List<Entity> list = duplicates.get(key);
+		int removed = list != null ? list.size() : 1;
+		ensureOwned();
+		version++;
+		int size = entities.size(), kept = 0;
+		Entity entity;
+		for (int p = 0; p < size; p++) {
+			entity = entities.get(p);
+			if (Type.PROPERTY == entity.getType() && key.equals(entity.getKey())) {
+				if (searchIndex != null) {
+					searchIndex.remove(entity);
+				}
+			} else {
+				entities.set(kept++, entity);
+			}
+		}
+		entities.subList(kept, size).clear();
+		keys.remove(key);
+		duplicates.remove(key);
+		count -= removed;
+		// the following offsets are shifted, rebuild them on demand
+		propertyOffsetsValid = false;
+		return removed;
 	}
 
 	/**
-	 * Loads properties from the specified InputStream.
+	 * Obtain the first property defined with the specified key.
 	 * 
-	 * @param inputStream
-	 *            The specified InputStream.
-	 * @throws IOException
+	 * @param key
+	 *            The property key.
+	 * @return The first property with this key or null if there is no such
+	 *         property.
 	 */
-	public void load(InputStream inputStream) throws IOException {
-		clear();
-		load0(new LineReader(inputStream));
-	}
-
-	private void load0(LineReader lr) throws IOException {
-		char[] convtBuf = new char[1024];
-		int limit;
-		int keyLen;
-		int valueStart;
-		char c;
-		boolean hasSep;
-		boolean precedingBackslash;
-		boolean isCommentLine;
-
-		while ((limit = lr.readLine()) >= 0) {
-			c = 0;
-			keyLen = 0;
-			valueStart = limit;
-			hasSep = false;
-
-			precedingBackslash = false;
-			isCommentLine = false;
-			while (keyLen < limit) {
-				c = lr.lineBuf[keyLen];
-				// need check if escaped.
-				if (c == '#' || c == '!') {
-					isCommentLine = true;
-					valueStart = keyLen + 1;
-				} else if ((c == '=' || c == ':') && !precedingBackslash) {
-					valueStart = keyLen + 1;
-					hasSep = true;
-					break;
-				} else if ((c == ' ' || c == '\t' || c == '\f')
-						&& !precedingBackslash) {
-					valueStart = keyLen + 1;
-					break;
+	public synchronized Entity get(String key) {
+		ensureKeys();
+		return keys.get(key);
+	}
+
+	/**
+	 * Check if there is a property defined with the specified key.
+	 * 
+	 * @param key
+	 *            The property key.
+	 * @return True if the key is defined.
+	 */
+	public synchronized boolean containsKey(String key) {
+		ensureKeys();
+		return keys.containsKey(key);
+	}
+
+	/**
+	 * Obtain the definition of a key which takes effect when the key is
+	 * defined more than once: the last one, like the Android init process
+	 * does when loads the properties files one after another.
+	 * 
+	 * @param key
+	 *            The property key.
+	 * @return The effective property with this key or null if there is no
+	 *         such property.
+	 */
+	public synchronized Entity getEffective(String key) {
+		ensureKeys();
+		List<Entity> list = duplicates.get(key);
+		return list != null ? list.get(list.size() - 1) : keys.get(key);
+	}
+
+	/**
+	 * Check if a property is overridden by a following definition of the
+	 * same key.
+	 * 
+	 * @param entity
+	 *            The property to check.
+	 * @return True if the property does not take effect.
+	 */
+	public boolean isOverridden(Entity entity) {
+		return Type.PROPERTY == entity.getType()
+				&& getEffective(entity.getKey()) != entity;
+	}
+
+	/**
+	 * Adds all the entities from another list at the end of this list.
+	 * 
+	 * @param other
+	 *            The entities to be added.
+	 */
+	public synchronized void addAll(Entities other) {
+		for (Entity entity : other.getProperties()) {
+			add(entity);
+		}
+	}
+
+	/**
+	 * Obtain the keys defined more than once.
+	 * 
+	 * @return The list of duplicate keys.
+	 */
+	public synchronized List<String> getDuplicateKeys() {
+		ensureKeys();
+		return new ArrayList<String>(duplicates.keySet());
+	}
+
+	/**
+	 * Change the key and the content of an entity from this list, keeping the
+	 * key index up to date.
+	 * 
+	 * @param entity
+	 *            The entity to be changed.
+	 * @param key
+	 *            The new entity key.
+	 * @param content
+	 *            The new entity content.
+	 * @return True if the key or the content was changed.
+	 */
+	public synchronized boolean update(Entity entity, String key,
+			String content) {
+		String oldKey = entity.getKey();
+		boolean keyChanged = !sameText(oldKey, key);
+		boolean contentChanged = !sameText(entity.getContent(), content);
+		boolean changed = keyChanged || contentChanged;
+		if (changed) {
+			version++;
+		}
+		if (keyChanged && Type.PROPERTY == entity.getType() && keys != null) {
+			ensureOwned();
+			unindexKey(entity, oldKey);
+			entity.setKey(key);
+			indexKey(entity);
+		} else if (keyChanged) {
+			entity.setKey(key);
+		}
+		if (contentChanged) {
+			entity.setContent(content);
+		}
+		if (changed && searchIndex != null
+				&& Type.PROPERTY == entity.getType()) {
+			searchIndex.update(entity);
+		}
+		return changed;
+	}
+
+	/**
+	 * Apply a batch of changes in a single pass over the list, the changed
+	 * keys being looked up on a map. When a key is defined more than once,
+	 * the SET changes the effective definition and the DELETE removes all the
+	 * definitions. The keys set but not defined are added at the end, like
+	 * the comments inserted after keys not defined.
+	 * 
+	 * @param changeset
+	 *            The changes to be applied.
+	 * @return True if the list was changed.
+	 */
+	public synchronized boolean apply(Changeset changeset) {
+		Map<String, Changeset.Change> operations = new LinkedHashMap<String, Changeset.Change>();
+		Map<String, List<Entity>> comments = new LinkedHashMap<String, List<Entity>>();
+		for (Changeset.Change change : changeset.getChanges()) {
+			if (Changeset.Operation.INSERT_COMMENT == change.getOperation()) {
+				List<Entity> list = comments.get(change.getKey());
+				if (list == null) {
+					list = new ArrayList<Entity>();
+					comments.put(change.getKey(), list);
 				}
-				if (c == '\\') {
-					precedingBackslash = !precedingBackslash;
-				} else {
-					precedingBackslash = false;
+				list.add(new Entity(Type.COMMENT, "#", change.getValue()));
+			} else {
+				operations.put(change.getKey(), change);
+			}
+		}
+		ensureKeys();
+		List<Entity> result = new ArrayList<Entity>(entities.size()
+				+ changeset.size());
+		boolean changed = false;
+		int properties = 0;
+		Changeset.Change change;
+		List<Entity> list;
+		String key;
+		for (Entity entity : entities) {
+			if (Type.PROPERTY != entity.getType()) {
+				result.add(entity);
+				continue;
+			}
+			key = entity.getKey();
+			list = duplicates.get(key);
+			boolean effective = list == null
+					|| list.get(list.size() - 1) == entity;
+			change = operations.get(key);
+			if (change != null
+					&& Changeset.Operation.DELETE == change.getOperation()) {
+				changed = true;
+			} else {
+				if (change != null && effective
+						&& !sameText(entity.getContent(), change.getValue())) {
+					entity.setContent(change.getValue());
+					changed = true;
 				}
-				keyLen++;
+				result.add(entity);
+				properties++;
 			}
-			while (valueStart < limit) {
-				c = lr.lineBuf[valueStart];
-				if (c != ' ' && c != '\t' && c != '\f') {
-					if (!hasSep && (c == '=' || c == ':')) {
-						hasSep = true;
-					} else {
-						break;
-					}
+			if (effective && (list = comments.remove(key)) != null) {
+				result.addAll(list);
+				changed = true;
+			}
+		}
+		for (Changeset.Change op : operations.values()) {
+			key = op.getKey();
+			if (Changeset.Operation.SET == op.getOperation()
+					&& !keys.containsKey(key)) {
+				result.add(new Entity(key, op.getValue()));
+				properties++;
+				changed = true;
+				if ((list = comments.remove(key)) != null) {
+					result.addAll(list);
 				}
-				valueStart++;
 			}
-			String key = loadConvert(lr.lineBuf, 0, keyLen, convtBuf);
-			String value = loadConvert(lr.lineBuf, valueStart, limit
-					- valueStart, convtBuf);
-			if (isCommentLine) {
-				add(new Entity(Type.COMMENT, key, value));
-			} else {
-				add(new Entity(key, value));
+		}
+		for (List<Entity> rest : comments.values()) {
+			result.addAll(rest);
+			changed = true;
+		}
+		if (changed) {
+			version++;
+			entities = result;
+			shared = false;
+			count = properties;
+			// the offsets array could be shared with a clone, never reuse it
+			propertyOffsets = new int[Math.max(16, count)];
+			propertyOffsetsValid = false;
+			keys = null;
+			duplicates = null;
+			searchIndex = null;
+		}
+		return changed;
+	}
+
+	/**
+	 * Look for the properties containing the filter on the key or on the
+	 * content, using a trigram index built on the first call and kept up to
+	 * date by the changes made through this class methods.
+	 * 
+	 * @param filter
+	 *            The searched text, already converted to lower case.
+	 * @param locale
+	 *            The locale used to convert the texts to lower case.
+	 * @return The properties found, on the list order, or null if the filter
+	 *         is too short to be searched on the index.
+	 */
+	public synchronized List<Entity> search(String filter, Locale locale) {
+		if (filter.length() < SearchIndex.GRAM_LENGTH) {
+			return null;
+		}
+		if (searchIndex == null || !locale.equals(searchIndex.getLocale())) {
+			searchIndex = new SearchIndex(locale);
+			for (Entity entity : entities) {
+				if (Type.PROPERTY == entity.getType()) {
+					searchIndex.add(entity);
+				}
 			}
 		}
+		return searchIndex.search(filter);
 	}
 
 	/**
-	 * Read in a "logical line" from an InputStream/Reader, skip all comment and
-	 * blank lines and filter out those leading whitespace characters ( , and )
-	 * from the beginning of a "natural line". Method returns the char length of
-	 * the "logical line" and stores the line in "lineBuf".
+	 * Check if two texts are equal, null values included.
 	 */
-	class LineReader {
-		byte[] inByteBuf;
-		char[] inCharBuf;
-		char[] lineBuf = new char[1024];
-		int inLimit = 0;
-		int inOff = 0;
-		InputStream inStream;
-		Reader reader;
+	private static boolean sameText(String text1, String text2) {
+		return text1 == null ? text2 == null : text1.equals(text2);
+	}
 
-		public LineReader(InputStream inStream) {
-			this.inStream = inStream;
-			inByteBuf = new byte[8192];
+	/**
+	 * Look for the physical position of an entity, comparing the references
+	 * and not the keys, because the same key could be defined more times.
+	 * 
+	 * @param entity
+	 *            The entity to look for.
+	 * @return The position of the entity or -1 if it is not on the list.
+	 */
+	private int indexOf(Entity entity) {
+		int size = entities.size();
+		for (int p = 0; p < size; p++) {
+			if (entities.get(p) == entity) {
+				return p;
+			}
 		}
+		return -1;
+	}
 
-		public LineReader(Reader reader) {
-			this.reader = reader;
-			inCharBuf = new char[8192];
+	/**
+	 * Build the key index if it was not built yet.
+	 */
+	private void ensureKeys() {
+		if (keys == null) {
+			keys = new HashMap<String, Entity>();
+			duplicates = new HashMap<String, List<Entity>>();
+			for (Entity entity : entities) {
+				if (Type.PROPERTY == entity.getType()) {
+					indexKey(entity);
+				}
+			}
 		}
+	}
 
-		int readLine() throws IOException {
-			int len = 0;
-			char c = 0;
-
-			boolean skipWhiteSpace = true;
-			boolean isNewLine = true;
-			boolean appendedLineBegin = false;
-			boolean precedingBackslash = false;
-			boolean skipLF = false;
+	/**
+	 * Add a property entity to the key index.
+	 * 
+	 * @param entity
+	 *            The property to be indexed.
+	 */
+	private void indexKey(Entity entity) {
+		String key = entity.getKey();
+		Entity first = keys.get(key);
+		if (first == null) {
+			keys.put(key, entity);
+		} else {
+			List<Entity> list = duplicates.get(key);
+			if (list == null) {
+				list = new ArrayList<Entity>(2);
+				list.add(first);
+				duplicates.put(key, list);
+			}
+			list.add(entity);
+		}
+	}
 
-			while (true) {
-				if (inOff >= inLimit) {
-					inLimit = (inStream == null) ? reader.read(inCharBuf)
-							: inStream.read(inByteBuf);
-					inOff = 0;
-					if (inLimit <= 0) {
-						if (len == 0) {
-							return -1;
-						}
-						return len;
-					}
-				}
-				if (inStream != null) {
-					// The line below is equivalent to calling a
-					// ISO8859-1 decoder.
-					c = (char) (0xff & inByteBuf[inOff++]);
-				} else {
-					c = inCharBuf[inOff++];
-				}
-				if (skipLF) {
-					skipLF = false;
-					if (c == '\n') {
-						continue;
-					}
-				}
-				if (skipWhiteSpace) {
-					if (c == ' ' || c == '\t' || c == '\f') {
-						continue;
-					}
-					if (!appendedLineBegin && (c == '\r' || c == '\n')) {
-						add(new Entity(Type.EMPTY, "", ""));
-						continue;
-					}
-					skipWhiteSpace = false;
-					appendedLineBegin = false;
-				}
-				if (isNewLine) {
-					isNewLine = false;
+	/**
+	 * Remove a property entity from the key index.
+	 * 
+	 * @param entity
+	 *            The property to be removed from index.
+	 * @param key
+	 *            The key used when the entity was indexed.
+	 */
+	private void unindexKey(Entity entity, String key) {
+		List<Entity> list = duplicates.get(key);
+		if (list == null) {
+			if (keys.get(key) == entity) {
+				keys.remove(key);
+			}
+		} else {
+			for (int i = 0; i < list.size(); i++) {
+				if (list.get(i) == entity) {
+					list.remove(i);
+					break;
 				}
+			}
+			keys.put(key, list.get(0));
+			if (list.size() < 2) {
+				duplicates.remove(key);
+			}
+		}
+	}
 
-				if (c != '\n' && c != '\r') {
-					lineBuf[len++] = c;
-					if (len == lineBuf.length) {
-						int newLength = lineBuf.length * 2;
-						if (newLength < 0) {
-							newLength = Integer.MAX_VALUE;
-						}
-						char[] buf = new char[newLength];
-						System.arraycopy(lineBuf, 0, buf, 0, lineBuf.length);
-						lineBuf = buf;
-					}
-					// flip the preceding backslash flag
-					if (c == '\\') {
-						precedingBackslash = !precedingBackslash;
-					} else {
-						precedingBackslash = false;
-					}
-				} else {
-					// reached EOL
-					if (len == 0) {
-						isNewLine = true;
-						skipWhiteSpace = true;
-						len = 0;
-						continue;
-					}
-					if (inOff >= inLimit) {
-						inLimit = (inStream == null) ? reader.read(inCharBuf)
-								: inStream.read(inByteBuf);
-						inOff = 0;
-						if (inLimit <= 0) {
-							return len;
-						}
-					}
-					if (precedingBackslash) {
-						len -= 1;
-						// skip the leading whitespace characters in following
-						// line
-						skipWhiteSpace = true;
-						appendedLineBegin = true;
-						precedingBackslash = false;
-						if (c == '\r') {
-							skipLF = true;
-						}
-					} else {
-						return len;
-					}
+	/**
+	 * Create a snapshot of this entities list. The clone shares the lists with
+	 * this instance, the copy is made only when one of them is changed.
+	 */
+	@Override
+	public synchronized Object clone() {
+		Entities ent;
+		try {
+			ent = (Entities) super.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new InternalError();
+		}
+		shared = true;
+		ent.shared = true;
+		ent.searchIndex = null;
+		return ent;
+	}
+
+	/**
+	 * Create a copy of this entities list with copies of the entities. Unlike
+	 * {@link #clone()}, which shares the entities, the copy is not affected
+	 * by the entities changed later in place, for example by
+	 * {@link #update(Entity, String, String)} or {@link #apply(Changeset)}.
+	 * 
+	 * @return The copy of the entities list.
+	 */
+	public synchronized Entities snapshot() {
+		Entities copy = new Entities();
+		for (Entity entity : entities) {
+			copy.add((Entity) entity.clone());
+		}
+		return copy;
+	}
+
+	/**
+	 * Loads properties from the specified InputStream. The stream is read
+	 * entirely and the properties are parsed from the read bytes.
+	 * 
+	 * @param inputStream
+	 *            The specified InputStream.
+	 * @throws IOException
+	 */
+	public void load(InputStream inputStream) throws IOException {
+		byte[] buf = new byte[8192];
+		int len = 0, read;
+		while ((read = inputStream.read(buf, len, buf.length - len)) > -1) {
+			len += read;
+			if (len == buf.length) {
+				int newLength = buf.length * 2;
+				if (newLength < 0) {
+					newLength = Integer.MAX_VALUE;
 				}
+				byte[] newBuf = new byte[newLength];
+				System.arraycopy(buf, 0, newBuf, 0, len);
+				buf = newBuf;
 			}
 		}
+		load(ByteBuffer.wrap(buf, 0, len));
+	}
+
+	/**
+	 * Loads properties from the specified buffer, from its position to its
+	 * limit. The lines without escape sequences are not converted to strings
+	 * while loading, their keys and contents are decoded from the buffer only
+	 * when they are used for the first time, so the buffer should not be
+	 * changed while the entities are used.
+	 * 
+	 * @param buffer
+	 *            The buffer containing the ISO 8859-1 encoded properties, for
+	 *            example the content of a file read in memory.
+	 */
+	public void load(ByteBuffer buffer) {
+		load(buffer, null);
 	}
 
 	/**
-	 * Converts encoded &#92;uxxxx to unicode chars and changes special saved
-	 * chars to their original forms
+	 * Loads properties from the specified buffer, marking the loaded entities
+	 * with the source file name and line numbers.
+	 * 
+	 * @param buffer
+	 *            The buffer containing the ISO 8859-1 encoded properties.
+	 * @param sourceFile
+	 *            The name of the file from where the buffer was read.
+	 */
+	public void load(ByteBuffer buffer, String sourceFile) {
+		clear();
+		LoadHandler handler = new LoadHandler(sourceFile);
+		new PropertiesParser(buffer).parse(handler);
+		handler.keepTrailingSpaces(buffer.limit());
+		if (sourceFile != null) {
+			setSourceDigest(sourceFile, digest(buffer));
+		}
+	}
+
+	/**
+	 * Obtain the digest of the content of a file, computed when the entities
+	 * were loaded from that file or set after they were saved to it.
+	 * 
+	 * @param sourceFile
+	 *            The file name.
+	 * @return The digest or null if it is not known for this file.
+	 */
+	public synchronized byte[] getSourceDigest(String sourceFile) {
+		return sourceFile != null && sourceFile.equals(digestFile) ? digest
+				: null;
+	}
+
+	/**
+	 * Obtain the name of the file from where the entities were loaded, or to
+	 * where they were last saved, which digest is known.
+	 * 
+	 * @return The source file name or null if it is not known.
+	 */
+	public synchronized String getSourceFile() {
+		return digestFile;
+	}
+
+	/**
+	 * Set the digest of the content of a file, after the entities were saved.
+	 * 
+	 * @param sourceFile
+	 *            The file name.
+	 * @param digest
+	 *            The digest computed with the {@link #DIGEST_ALGORITHM}.
 	 */
-	private String loadConvert(char[] in, int off, int len, char[] convtBuf) {
-		if (convtBuf.length < len) {
-			int newLen = len * 2;
-			if (newLen < 0) {
-				newLen = Integer.MAX_VALUE;
+	public synchronized void setSourceDigest(String sourceFile, byte[] digest) {
+		this.digestFile = sourceFile;
+		this.digest = digest;
+	}
+
+	/**
+	 * Compute the digest of a buffer content, from its position to its limit.
+	 * 
+	 * @param buffer
+	 *            The buffer.
+	 * @return The digest or null if the algorithm is not available.
+	 */
+	private static byte[] digest(ByteBuffer buffer) {
+		try {
+			MessageDigest messageDigest = MessageDigest
+					.getInstance(DIGEST_ALGORITHM);
+			messageDigest.update(buffer.duplicate());
+			return messageDigest.digest();
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Loads properties from the specified file, read entirely in a heap
+	 * buffer from where the texts are decoded when they are used, see
+	 * {@link #load(ByteBuffer)}. The file is not mapped in memory, because
+	 * the file could be replaced or truncated while the entities are used.
+	 * 
+	 * @param file
+	 *            The properties file.
+	 * @throws IOException
+	 */
+	public void load(File file) throws IOException {
+		load(file, file.getPath());
+	}
+
+	/**
+	 * Loads properties from the specified file, marking the loaded entities
+	 * with the provided source file name, used when the file is a readable
+	 * copy of the original file.
+	 * 
+	 * @param file
+	 *            The properties file.
+	 * @param sourceFile
+	 *            The name of the original file.
+	 * @throws IOException
+	 */
+	public void load(File file, String sourceFile) throws IOException {
+		FileInputStream inputStream = new FileInputStream(file);
+		try {
+			FileChannel channel = inputStream.getChannel();
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("The file " + file + " is too big");
 			}
-			convtBuf = new char[newLen];
-		}
-		char aChar;
-		char[] out = convtBuf;
-		int outLen = 0;
-		int end = off + len;
-
-		while (off < end) {
-			aChar = in[off++];
-			if (aChar == '\\') {
-				aChar = in[off++];
-				if (aChar == 'u') {
-					// Read the xxxx
-					int value = 0;
-					for (int i = 0; i < 4; i++) {
-						aChar = in[off++];
-						switch (aChar) {
-						case '0':
-						case '1':
-						case '2':
-						case '3':
-						case '4':
-						case '5':
-						case '6':
-						case '7':
-						case '8':
-						case '9':
-							value = (value << 4) + aChar - '0';
-							break;
-						case 'a':
-						case 'b':
-						case 'c':
-						case 'd':
-						case 'e':
-						case 'f':
-							value = (value << 4) + 10 + aChar - 'a';
-							break;
-						case 'A':
-						case 'B':
-						case 'C':
-						case 'D':
-						case 'E':
-						case 'F':
-							value = (value << 4) + 10 + aChar - 'A';
-							break;
-						default:
-							throw new IllegalArgumentException(
-									"Malformed \\uxxxx encoding for character: \"" + aChar +
-											"\", out: \"" + out + "\"");
-						}
-					}
-					out[outLen++] = (char) value;
-				} else {
-					if (aChar == 't')
-						aChar = '\t';
-					else if (aChar == 'r')
-						aChar = '\r';
-					else if (aChar == 'n')
-						aChar = '\n';
-					else if (aChar == 'f')
-						aChar = '\f';
-					out[outLen++] = aChar;
-				}
+			ByteBuffer buffer = ByteBuffer.allocate((int) size);
+			while (buffer.hasRemaining() && channel.read(buffer) > -1) {
+				/* read until the end of the file */
+			}
+			buffer.flip();
+			load(buffer, sourceFile);
+		} finally {
+			try {
+				inputStream.close();
+			} catch (IOException e) {
+				/* ignored */
+			}
+		}
+	}
+
+	/**
+	 * Parser handler used to add the parsed lines to this list.
+	 */
+	private class LoadHandler implements PropertiesParser.Handler {
+		private String sourceFile;
+		private Entity last;
+
+		LoadHandler(String sourceFile) {
+			this.sourceFile = sourceFile;
+		}
+
+		@Override
+		public void onProperty(PropertiesParser parser, int keyStart,
+				int keyEnd, int valueStart, int valueEnd) {
+			add(createEntity(Type.PROPERTY, parser, keyStart, keyEnd,
+					valueStart, valueEnd));
+		}
+
+		@Override
+		public void onComment(PropertiesParser parser, int keyStart,
+				int keyEnd, int valueStart, int valueEnd) {
+			add(createEntity(Type.COMMENT, parser, keyStart, keyEnd,
+					valueStart, valueEnd));
+		}
+
+		@Override
+		public void onEmpty(PropertiesParser parser) {
+			Entity entity = new Entity(Type.EMPTY, "", "");
+			entity.setSource(sourceFile, parser.getLineNumber());
+			entity.setLine(parser.getBuffer(), parser.getLineStart(),
+					parser.getLineEnd());
+			add(entity);
+			last = entity;
+		}
+
+		@Override
+		public void onError(PropertiesParser parser, int line, String message) {
+			throw new IllegalArgumentException(message + " on line " + line);
+		}
+
+		/**
+		 * The lines with escapes are decoded now, the others will be decoded
+		 * from the buffer when they are used.
+		 */
+		private Entity createEntity(Type type, PropertiesParser parser,
+				int keyStart, int keyEnd, int valueStart, int valueEnd) {
+			Entity entity;
+			if (parser.hasEscapes()) {
+				entity = new Entity(type, parser.getString(keyStart, keyEnd),
+						parser.getString(valueStart, valueEnd));
 			} else {
-				out[outLen++] = aChar;
+				entity = new Entity(type, parser.getBuffer(), keyStart, keyEnd,
+						valueStart, valueEnd);
+			}
+			entity.setSource(sourceFile, parser.getLineNumber());
+			entity.setLine(parser.getBuffer(), parser.getLineStart(),
+					parser.getLineEnd());
+			last = entity;
+			return entity;
+		}
+
+		/**
+		 * The white spaces from the end of the buffer are not reported by the
+		 * parser, these are added to the last line to be written back.
+		 */
+		void keepTrailingSpaces(int limit) {
+			if (last != null && last.getLineEnd() < limit) {
+				last.setLine(last.getSourceBuffer(), last.getLineStart(), limit);
 			}
 		}
-		return new String(out, 0, outLen);
 	}
 
 	/**
@@ -455,166 +938,116 @@ public class Entities implements Cloneable {
 	 *             output stream throws an <tt>IOException</tt>.
 	 */
 	public void store(Writer writer) throws IOException {
-		store0((writer instanceof BufferedWriter) ? (BufferedWriter) writer
-				: new BufferedWriter(writer), false);
+		store0(new PropertiesWriter(writer));
+	}
+
+	/**
+	 * Writes the entities properties list to the output stream, like
+	 * {@link #store(Writer)}, using the ISO 8859-1 encoding used to load the
+	 * properties. The characters outside this charset are written as
+	 * &#92;uxxxx escape sequences.
+	 * 
+	 * @param outputStream
+	 *            An output byte stream.
+	 * @throws IOException
+	 *             If writing to the specified output stream throws an
+	 *             <tt>IOException</tt>.
+	 */
+	public void store(OutputStream outputStream) throws IOException {
+		store0(new PropertiesWriter(outputStream));
 	}
 
-	private void store0(BufferedWriter bw, boolean escUnicode)
-			throws IOException {
+	/**
+	 * Writes the entities properties list to the output stream, like
+	 * {@link #store(OutputStream)}, but only the changed entities are
+	 * serialized again. The unchanged entities are copied as they are from
+	 * the loaded buffers, the consecutive unchanged lines being copied in a
+	 * single block, so the comments, the separators and the escapes of the
+	 * unchanged lines are kept.
+	 * 
+	 * @param outputStream
+	 *            An output byte stream.
+	 * @throws IOException
+	 *             If writing to the specified output stream throws an
+	 *             <tt>IOException</tt>.
+	 */
+	public void storeChanges(OutputStream outputStream) throws IOException {
+		PropertiesWriter propertiesWriter = new PropertiesWriter(outputStream);
 		synchronized (this) {
+			ByteBuffer runSource = null;
+			int runStart = 0;
+			int runEnd = 0;
 			for (Entity entity : entities) {
-				switch (entity.getType()) {
-				case COMMENT:
-					writeComments(bw,
-							entity.getKey() + " " + entity.getContent());
-					break;
-				case EMPTY:
-					bw.write(' ');
-					bw.newLine();
-					break;
-				case PROPERTY:
-					bw.write(saveConvert(entity.getKey(), true, escUnicode)
-							+ "="
-							+ saveConvert(entity.getContent(), false,
-									escUnicode));
-					bw.newLine();
-					break;
-				}
-			}
-		}
-		bw.flush();
-	}
-
-	/**
-	 * Write the comment to the file.
-	 */
-	private static void writeComments(BufferedWriter bw, String comments)
-			throws IOException {
-		int len = comments.length();
-		int current = 0;
-		int last = 0;
-		char[] uu = new char[6];
-		uu[0] = '\\';
-		uu[1] = 'u';
-		if (comments.charAt(0) != '#') {
-			bw.write("#");
-		}
-		while (current < len) {
-			char c = comments.charAt(current);
-			if (c > '\u00ff' || c == '\n' || c == '\r') {
-				if (last != current)
-					bw.write(comments.substring(last, current));
-				if (c > '\u00ff') {
-					uu[2] = toHex((c >> 12) & 0xf);
-					uu[3] = toHex((c >> 8) & 0xf);
-					uu[4] = toHex((c >> 4) & 0xf);
-					uu[5] = toHex(c & 0xf);
-					bw.write(new String(uu));
+				if (entity.isChanged()) {
+					if (runSource != null) {
+						propertiesWriter.writeRaw(runSource, runStart, runEnd);
+						runSource = null;
+					}
+					propertiesWriter.write(entity);
+				} else if (runSource == entity.getSourceBuffer()
+						&& runEnd == entity.getLineStart()) {
+					runEnd = entity.getLineEnd();
 				} else {
-					bw.newLine();
-					if (c == '\r' && current != len - 1
-							&& comments.charAt(current + 1) == '\n') {
-						current++;
+					if (runSource != null) {
+						propertiesWriter.writeRaw(runSource, runStart, runEnd);
 					}
-					if (current == len - 1
-							|| (comments.charAt(current + 1) != '#' && comments
-									.charAt(current + 1) != '!'))
-						bw.write("#");
+					runSource = entity.getSourceBuffer();
+					runStart = entity.getLineStart();
+					runEnd = entity.getLineEnd();
 				}
-				last = current + 1;
 			}
-			current++;
+			if (runSource != null) {
+				propertiesWriter.writeRaw(runSource, runStart, runEnd);
+			}
 		}
-		if (last != current)
-			bw.write(comments.substring(last, current));
-		bw.newLine();
+		propertiesWriter.flush();
 	}
 
 	/**
-	 * Converts unicodes to encoded &#92;uxxxx and escapes special characters
-	 * with a preceding slash
+	 * Check if the entities are exactly the unchanged lines loaded from a
+	 * file, in which case {@link #storeChanges(OutputStream)} would write the
+	 * same content as the loaded file and the saving can be skipped.
+	 * 
+	 * @param sourceFile
+	 *            The name of the file from where the entities were loaded.
+	 * @return True if saving the entities would produce the loaded file.
 	 */
-	private String saveConvert(String theString, boolean escapeSpace,
-			boolean escapeUnicode) {
-		int len = theString.length();
-		int bufLen = len * 2;
-		if (bufLen < 0) {
-			bufLen = Integer.MAX_VALUE;
+	public synchronized boolean isUnchanged(String sourceFile) {
+		if (entities.isEmpty()) {
+			return false;
 		}
-		StringBuffer outBuffer = new StringBuffer(bufLen);
-
-		for (int x = 0; x < len; x++) {
-			char aChar = theString.charAt(x);
-			// Handle common case first, selecting largest block that
-			// avoids the specials below
-			if ((aChar > 61) && (aChar < 127)) {
-				if (aChar == '\\') {
-					outBuffer.append('\\');
-					outBuffer.append('\\');
-					continue;
-				}
-				outBuffer.append(aChar);
-				continue;
+		ByteBuffer source = entities.get(0).getSourceBuffer();
+		int pos = 0;
+		for (Entity entity : entities) {
+			if (entity.isChanged() || entity.getSourceBuffer() != source
+					|| entity.getLineStart() != pos
+					|| !sameText(sourceFile, entity.getSourceFile())) {
+				return false;
 			}
-			switch (aChar) {
-			case ' ':
-				if (x == 0 || escapeSpace)
-					outBuffer.append('\\');
-				outBuffer.append(' ');
-				break;
-			case '\t':
-				outBuffer.append('\\');
-				outBuffer.append('t');
-				break;
-			case '\n':
-				outBuffer.append('\\');
-				outBuffer.append('n');
-				break;
-			case '\r':
-				outBuffer.append('\\');
-				outBuffer.append('r');
-				break;
-			case '\f':
-				outBuffer.append('\\');
-				outBuffer.append('f');
-				break;
-			case '=': // Fall through
-			case ':': // Fall through
-			case '#': // Fall through
-			case '!':
-				// outBuffer.append('\\');
-				outBuffer.append(aChar);
-				break;
-			default:
-				if (((aChar < 0x0020) || (aChar > 0x007e)) & escapeUnicode) {
-					outBuffer.append('\\');
-					outBuffer.append('u');
-					outBuffer.append(toHex((aChar >> 12) & 0xF));
-					outBuffer.append(toHex((aChar >> 8) & 0xF));
-					outBuffer.append(toHex((aChar >> 4) & 0xF));
-					outBuffer.append(toHex(aChar & 0xF));
-				} else {
-					outBuffer.append(aChar);
-				}
+			pos = entity.getLineEnd();
+		}
+		return pos == source.limit();
+	}
+
+	private void store0(PropertiesWriter propertiesWriter) throws IOException {
+		synchronized (this) {
+			for (Entity entity : entities) {
+				propertiesWriter.write(entity);
 			}
 		}
-		return outBuffer.toString();
+		propertiesWriter.flush();
 	}
 
 	/**
-	 * Convert a nibble to a hex character
+	 * Obtain the version of this entities list, increased on every change made
+	 * through this class methods.
 	 * 
-	 * @param nibble
-	 *            the nibble to convert.
+	 * @return The entities list version.
 	 */
-	private static char toHex(int nibble) {
-		return hexDigit[(nibble & 0xF)];
+	public int getVersion() {
+		return version;
 	}
 
-	/** A table of hex digits */
-	private static final char[] hexDigit = { '0', '1', '2', '3', '4', '5', '6',
-			'7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
-
 	/**
 	 * Check if the entities are modified.
 	 * 
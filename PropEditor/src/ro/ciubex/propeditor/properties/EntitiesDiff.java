@@ -0,0 +1,408 @@
+/**
+ * This file is part of PropEditor application.
+ * 
+ * Copyright (C) 2016 Claudiu Ciobotariu
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ro.ciubex.propeditor.properties;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The differences between two entities lists. The properties are matched by
+ * their keys, comparing the effective definitions, and the lines order is
+ * compared with a patience diff: the lines unique on both lists are used as
+ * anchors, their longest increasing sequence is kept, and the ranges between
+ * anchors are compared again the same way. The lines out of this sequence
+ * are reported as moved if they are found on both lists.
+ * 
+ * @author Claudiu Ciobotariu
+ * 
+ */
+public class EntitiesDiff {
+
+	/**
+	 * The kind of a change.
+	 */
+	public enum Kind {
+		ADDED, REMOVED, CHANGED, MOVED
+	}
+
+	/**
+	 * A difference between the two lists.
+	 */
+	public static class Change {
+		private Kind kind;
+		private Entity oldEntity;
+		private Entity newEntity;
+
+		Change(Kind kind, Entity oldEntity, Entity newEntity) {
+			this.kind = kind;
+			this.oldEntity = oldEntity;
+			this.newEntity = newEntity;
+		}
+
+		public Kind getKind() {
+			return kind;
+		}
+
+		/**
+		 * Get the entity from the old list.
+		 * 
+		 * @return The old entity or null for an added entity.
+		 */
+		public Entity getOldEntity() {
+			return oldEntity;
+		}
+
+		/**
+		 * Get the entity from the new list.
+		 * 
+		 * @return The new entity or null for a removed entity.
+		 */
+		public Entity getNewEntity() {
+			return newEntity;
+		}
+
+		/**
+		 * Get the type of the changed entity.
+		 * 
+		 * @return The entity type.
+		 */
+		public Type getType() {
+			return newEntity != null ? newEntity.getType() : oldEntity.getType();
+		}
+
+		/**
+		 * Get the key of the changed entity.
+		 * 
+		 * @return The entity key.
+		 */
+		public String getKey() {
+			return newEntity != null ? newEntity.getKey() : oldEntity.getKey();
+		}
+	}
+
+	private List<Change> changes;
+
+	private EntitiesDiff(List<Change> changes) {
+		this.changes = changes;
+	}
+
+	/**
+	 * Obtain the changes, first the properties changes on the new list
+	 * order, then the removed properties, and at the end the moved, added
+	 * and removed comments and empty lines.
+	 * 
+	 * @return The changes list.
+	 */
+	public List<Change> getChanges() {
+		return Collections.unmodifiableList(changes);
+	}
+
+	/**
+	 * Check if the two lists are the same.
+	 * 
+	 * @return True if there are no changes.
+	 */
+	public boolean isEmpty() {
+		return changes.isEmpty();
+	}
+
+	/**
+	 * Compare two entities lists.
+	 * 
+	 * @param oldEntities
+	 *            The old entities, for example the loaded file.
+	 * @param newEntities
+	 *            The new entities, for example the edited list.
+	 * @return The differences between the lists.
+	 */
+	public static EntitiesDiff compare(Entities oldEntities,
+			Entities newEntities) {
+		List<Entity> a = snapshot(oldEntities);
+		List<Entity> b = snapshot(newEntities);
+		String[] tokensA = tokens(a);
+		String[] tokensB = tokens(b);
+		int[] matchA = new int[a.size()];
+		int[] matchB = new int[b.size()];
+		Arrays.fill(matchA, -1);
+		Arrays.fill(matchB, -1);
+		matchLines(tokensA, tokensB, matchA, matchB);
+
+		List<Change> changes = new ArrayList<Change>();
+		compareProperties(a, b, matchB, changes);
+		compareLines(a, b, tokensA, tokensB, matchA, matchB, changes);
+		return new EntitiesDiff(changes);
+	}
+
+	/**
+	 * Copy the entities list, to not keep the lock during the comparing or
+	 * the merging.
+	 */
+	static List<Entity> snapshot(Entities entities) {
+		synchronized (entities) {
+			return new ArrayList<Entity>(entities.entities);
+		}
+	}
+
+	/**
+	 * Compute the text used to match the lines: the key for properties, the
+	 * whole text for comments.
+	 */
+	private static String[] tokens(List<Entity> list) {
+		String[] tokens = new String[list.size()];
+		Entity entity;
+		for (int i = 0; i < tokens.length; i++) {
+			entity = list.get(i);
+			switch (entity.getType()) {
+			case PROPERTY:
+				tokens[i] = "P" + entity.getKey();
+				break;
+			case COMMENT:
+				tokens[i] = "C" + entity.getKey() + '\u0000' + entity.getContent();
+				break;
+			default:
+				tokens[i] = "E";
+			}
+		}
+		return tokens;
+	}
+
+	/**
+	 * Compare the properties by keys, using the effective definitions.
+	 */
+	private static void compareProperties(List<Entity> a, List<Entity> b,
+			int[] matchB, List<Change> changes) {
+		Map<String, Entity> oldKeys = effective(a);
+		Map<String, Entity> newKeys = effective(b);
+		Map<Entity, Integer> newPositions = new IdentityHashMap<Entity, Integer>();
+		for (int i = 0; i < b.size(); i++) {
+			if (Type.PROPERTY == b.get(i).getType()) {
+				newPositions.put(b.get(i), i);
+			}
+		}
+		Entity oldEntity;
+		for (Entity newEntity : newKeys.values()) {
+			oldEntity = oldKeys.get(newEntity.getKey());
+			if (oldEntity == null) {
+				changes.add(new Change(Kind.ADDED, null, newEntity));
+			} else if (!sameText(oldEntity.getContent(), newEntity.getContent())) {
+				changes.add(new Change(Kind.CHANGED, oldEntity, newEntity));
+			} else if (matchB[newPositions.get(newEntity)] < 0) {
+				changes.add(new Change(Kind.MOVED, oldEntity, newEntity));
+			}
+		}
+		for (Entity entity : oldKeys.values()) {
+			if (!newKeys.containsKey(entity.getKey())) {
+				changes.add(new Change(Kind.REMOVED, entity, null));
+			}
+		}
+	}
+
+	/**
+	 * Map the keys to the last definitions, keeping the first definitions
+	 * order.
+	 */
+	static Map<String, Entity> effective(List<Entity> list) {
+		Map<String, Entity> keys = new LinkedHashMap<String, Entity>();
+		for (Entity entity : list) {
+			if (Type.PROPERTY == entity.getType()) {
+				keys.put(entity.getKey(), entity);
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Compare the comments and the empty lines not matched by the lines
+	 * order. The same line found on both lists is reported as moved.
+	 */
+	private static void compareLines(List<Entity> a, List<Entity> b,
+			String[] tokensA, String[] tokensB, int[] matchA, int[] matchB,
+			List<Change> changes) {
+		Map<String, LinkedList<Integer>> unmatched = new HashMap<String, LinkedList<Integer>>();
+		for (int i = 0; i < tokensA.length; i++) {
+			if (matchA[i] < 0 && Type.PROPERTY != a.get(i).getType()) {
+				LinkedList<Integer> positions = unmatched.get(tokensA[i]);
+				if (positions == null) {
+					positions = new LinkedList<Integer>();
+					unmatched.put(tokensA[i], positions);
+				}
+				positions.add(i);
+			}
+		}
+		boolean[] moved = new boolean[tokensA.length];
+		for (int j = 0; j < tokensB.length; j++) {
+			if (matchB[j] < 0 && Type.PROPERTY != b.get(j).getType()) {
+				LinkedList<Integer> positions = unmatched.get(tokensB[j]);
+				if (positions != null && !positions.isEmpty()) {
+					int i = positions.removeFirst();
+					moved[i] = true;
+					changes.add(new Change(Kind.MOVED, a.get(i), b.get(j)));
+				} else {
+					changes.add(new Change(Kind.ADDED, null, b.get(j)));
+				}
+			}
+		}
+		for (int i = 0; i < tokensA.length; i++) {
+			if (matchA[i] < 0 && !moved[i]
+					&& Type.PROPERTY != a.get(i).getType()) {
+				changes.add(new Change(Kind.REMOVED, a.get(i), null));
+			}
+		}
+	}
+
+	/**
+	 * Match the lines keeping their order, with the patience diff. The ranges
+	 * to be compared are kept on a stack instead of recursive calls.
+	 */
+	private static void matchLines(String[] a, String[] b, int[] matchA,
+			int[] matchB) {
+		LinkedList<int[]> ranges = new LinkedList<int[]>();
+		ranges.addFirst(new int[] { 0, a.length, 0, b.length });
+		int[] range;
+		int aLo, aHi, bLo, bHi;
+		while (!ranges.isEmpty()) {
+			range = ranges.removeFirst();
+			aLo = range[0];
+			aHi = range[1];
+			bLo = range[2];
+			bHi = range[3];
+			// the common prefix and suffix
+			while (aLo < aHi && bLo < bHi && a[aLo].equals(b[bLo])) {
+				match(aLo++, bLo++, matchA, matchB);
+			}
+			while (aLo < aHi && bLo < bHi && a[aHi - 1].equals(b[bHi - 1])) {
+				match(--aHi, --bHi, matchA, matchB);
+			}
+			if (aLo == aHi || bLo == bHi) {
+				continue;
+			}
+			int[] anchors = uniqueAnchors(a, aLo, aHi, b, bLo, bHi);
+			if (anchors.length == 0) {
+				continue;
+			}
+			// the anchors are pairs sorted by the position on a
+			int[] sequence = longestIncreasing(anchors);
+			int prevA = aLo, prevB = bLo;
+			for (int k : sequence) {
+				int i = anchors[2 * k], j = anchors[2 * k + 1];
+				match(i, j, matchA, matchB);
+				if (prevA < i && prevB < j) {
+					ranges.addFirst(new int[] { prevA, i, prevB, j });
+				}
+				prevA = i + 1;
+				prevB = j + 1;
+			}
+			if (prevA < aHi && prevB < bHi) {
+				ranges.addFirst(new int[] { prevA, aHi, prevB, bHi });
+			}
+		}
+	}
+
+	private static void match(int i, int j, int[] matchA, int[] matchB) {
+		matchA[i] = j;
+		matchB[j] = i;
+	}
+
+	/**
+	 * Find the lines found only once on both ranges.
+	 * 
+	 * @return The pairs of positions, sorted by the position on a.
+	 */
+	private static int[] uniqueAnchors(String[] a, int aLo, int aHi,
+			String[] b, int bLo, int bHi) {
+		// for each line: the count and the position on a, then on b
+		Map<String, int[]> lines = new HashMap<String, int[]>();
+		int[] info;
+		for (int i = aLo; i < aHi; i++) {
+			info = lines.get(a[i]);
+			if (info == null) {
+				info = new int[] { 0, i, 0, -1 };
+				lines.put(a[i], info);
+			}
+			info[0]++;
+		}
+		for (int j = bLo; j < bHi; j++) {
+			info = lines.get(b[j]);
+			if (info != null) {
+				info[2]++;
+				info[3] = j;
+			}
+		}
+		int count = 0;
+		int[] anchors = new int[2 * Math.min(aHi - aLo, bHi - bLo)];
+		for (int i = aLo; i < aHi && count < anchors.length; i++) {
+			info = lines.get(a[i]);
+			if (info[0] == 1 && info[2] == 1) {
+				anchors[count++] = i;
+				anchors[count++] = info[3];
+			}
+		}
+		int[] result = new int[count];
+		System.arraycopy(anchors, 0, result, 0, count);
+		return result;
+	}
+
+	/**
+	 * Find the longest sequence of anchors increasing on b, with the patience
+	 * sorting.
+	 * 
+	 * @return The indexes of the anchors pairs of the sequence.
+	 */
+	private static int[] longestIncreasing(int[] anchors) {
+		int n = anchors.length / 2;
+		int[] tails = new int[n];
+		int[] previous = new int[n];
+		int length = 0;
+		for (int i = 0; i < n; i++) {
+			int j = anchors[2 * i + 1];
+			int lo = 0, hi = length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (anchors[2 * tails[mid] + 1] < j) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			previous[i] = lo > 0 ? tails[lo - 1] : -1;
+			tails[lo] = i;
+			if (lo == length) {
+				length++;
+			}
+		}
+		int[] sequence = new int[length];
+		int k = length > 0 ? tails[length - 1] : -1;
+		for (int p = length - 1; k >= 0; p--) {
+			sequence[p] = k;
+			k = previous[k];
+		}
+		return sequence;
+	}
+
+	static boolean sameText(String text1, String text2) {
+		return text1 == null ? text2 == null : text1.equals(text2);
+	}
+}
@@ -0,0 +1,227 @@
+/**
+ * This file is part of PropEditor application.
+ * 
+ * Copyright (C) 2016 Claudiu Ciobotariu
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ro.ciubex.propeditor.properties;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Three-way merge of the properties: our changes made on a base file are
+ * applied on their version of the same file, for example the properties
+ * edited on the original build.prop applied on the build.prop updated by an
+ * OTA. The properties are matched by keys, using the effective definitions,
+ * and their file layout is kept. A key changed differently on both sides is
+ * reported as a conflict and their value is kept.
+ * 
+ * @author Claudiu Ciobotariu
+ * 
+ */
+public class EntitiesMerge {
+
+	/**
+	 * A key changed differently by us and by them. A null content means
+	 * that the key is not defined on that version.
+	 */
+	public static class Conflict {
+		private String key;
+		private String baseContent;
+		private String ourContent;
+		private String theirContent;
+
+		Conflict(String key, String baseContent, String ourContent,
+				String theirContent) {
+			this.key = key;
+			this.baseContent = baseContent;
+			this.ourContent = ourContent;
+			this.theirContent = theirContent;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public String getBaseContent() {
+			return baseContent;
+		}
+
+		public String getOurContent() {
+			return ourContent;
+		}
+
+		public String getTheirContent() {
+			return theirContent;
+		}
+	}
+
+	private Entities result;
+	private List<Conflict> conflicts;
+
+	private EntitiesMerge(Entities result, List<Conflict> conflicts) {
+		this.result = result;
+		this.conflicts = conflicts;
+	}
+
+	/**
+	 * Obtain the merged entities, to be written with
+	 * {@link Entities#store(java.io.OutputStream)}. Their unchanged lines are
+	 * the same entities, so
+	 * {@link Entities#storeChanges(java.io.OutputStream)} keeps their text.
+	 * 
+	 * @return The merged entities.
+	 */
+	public Entities getResult() {
+		return result;
+	}
+
+	/**
+	 * Obtain the keys changed differently on both sides.
+	 * 
+	 * @return The conflicts list, empty if the merge is clean.
+	 */
+	public List<Conflict> getConflicts() {
+		return Collections.unmodifiableList(conflicts);
+	}
+
+	/**
+	 * Check if the merge has conflicts.
+	 * 
+	 * @return True if there are conflicts.
+	 */
+	public boolean hasConflicts() {
+		return !conflicts.isEmpty();
+	}
+
+	/**
+	 * Merge our changes made on the base into their version. None of the
+	 * provided lists is changed.
+	 * 
+	 * @param base
+	 *            The common ancestor, for example the original backup file.
+	 * @param ours
+	 *            Our version, for example the edited properties.
+	 * @param theirs
+	 *            Their version, for example the updated file.
+	 * @return The merge result.
+	 */
+	public static EntitiesMerge merge(Entities base, Entities ours,
+			Entities theirs) {
+		Map<String, Entity> baseKeys = EntitiesDiff.effective(EntitiesDiff
+				.snapshot(base));
+		List<Entity> ourList = EntitiesDiff.snapshot(ours);
+		Map<String, Entity> ourKeys = EntitiesDiff.effective(ourList);
+		List<Entity> theirList = EntitiesDiff.snapshot(theirs);
+		Map<String, Entity> theirKeys = EntitiesDiff.effective(theirList);
+		List<Conflict> conflicts = new ArrayList<Conflict>();
+
+		// our changes to be applied: a new content or null to delete the key
+		Map<String, String> changes = new HashMap<String, String>();
+		String key, baseContent, ourContent, theirContent;
+		for (Entity entity : ourKeys.values()) {
+			key = entity.getKey();
+			ourContent = entity.getContent();
+			baseContent = content(baseKeys.get(key));
+			if (!baseKeys.containsKey(key)
+					|| !EntitiesDiff.sameText(baseContent, ourContent)) {
+				theirContent = content(theirKeys.get(key));
+				if (EntitiesDiff.sameText(baseContent, theirContent)) {
+					changes.put(key, ourContent);
+				} else if (!EntitiesDiff.sameText(ourContent, theirContent)) {
+					conflicts.add(new Conflict(key, baseContent, ourContent,
+							theirContent));
+				}
+			}
+		}
+		for (Entity entity : baseKeys.values()) {
+			key = entity.getKey();
+			if (!ourKeys.containsKey(key) && theirKeys.containsKey(key)) {
+				baseContent = entity.getContent();
+				theirContent = content(theirKeys.get(key));
+				if (EntitiesDiff.sameText(baseContent, theirContent)) {
+					changes.put(key, null);
+				} else {
+					conflicts.add(new Conflict(key, baseContent, null,
+							theirContent));
+				}
+			}
+		}
+
+		// our added keys are placed after the previous key kept by them
+		Map<String, List<Entity>> added = new HashMap<String, List<Entity>>();
+		List<Entity> appended = new ArrayList<Entity>();
+		String previous = null;
+		for (Entity entity : ourList) {
+			if (Type.PROPERTY != entity.getType()) {
+				continue;
+			}
+			key = entity.getKey();
+			if (ourKeys.get(key) == entity && !theirKeys.containsKey(key)
+					&& changes.containsKey(key)) {
+				Entity copy = new Entity(key, entity.getContent());
+				if (previous == null) {
+					appended.add(copy);
+				} else {
+					List<Entity> list = added.get(previous);
+					if (list == null) {
+						list = new ArrayList<Entity>();
+						added.put(previous, list);
+					}
+					list.add(copy);
+				}
+			} else if (theirKeys.containsKey(key)
+					&& !(changes.containsKey(key) && changes.get(key) == null)) {
+				previous = key;
+			}
+		}
+
+		Entities result = new Entities();
+		for (Entity entity : theirList) {
+			if (Type.PROPERTY == entity.getType()
+					&& theirKeys.get(entity.getKey()) == entity) {
+				key = entity.getKey();
+				if (changes.containsKey(key)) {
+					ourContent = changes.get(key);
+					if (ourContent != null) {
+						result.add(new Entity(key, ourContent));
+					}
+				} else {
+					result.add(entity);
+				}
+				List<Entity> list = added.get(key);
+				if (list != null) {
+					for (Entity copy : list) {
+						result.add(copy);
+					}
+				}
+			} else {
+				result.add(entity);
+			}
+		}
+		for (Entity copy : appended) {
+			result.add(copy);
+		}
+		return new EntitiesMerge(result, conflicts);
+	}
+
+	private static String content(Entity entity) {
+		return entity != null ? entity.getContent() : null;
+	}
+}
@@ -18,6 +18,9 @@
  */
 package ro.ciubex.propeditor.properties;
 
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
 /**
  * A replacement of java property entity
  * 
@@ -28,6 +31,34 @@ public class Entity implements Cloneable {
 	private Type type;
 	private String key;
 	private String content;
+	private Locale searchLocale;
+	private String searchKey;
+	private String searchContent;
+
+	/**
+	 * The source buffer and the ranges of the key and content not decoded
+	 * yet, a negative start meaning that the text is already decoded.
+	 */
+	private ByteBuffer source;
+	private volatile int keyStart = -1;
+	private int keyEnd;
+	private volatile int contentStart = -1;
+	private int contentEnd;
+
+	/**
+	 * The file from where this entity was loaded and its line number.
+	 */
+	private String sourceFile;
+	private int sourceLine;
+
+	/**
+	 * The range of the original line on the source buffer, including the
+	 * line terminator, and the flag set when the entity is changed after it
+	 * was loaded.
+	 */
+	private int lineStart = -1;
+	private int lineEnd;
+	private boolean changed;
 
 	public Entity(Type type, String content) {
 		this(type, null, content);
@@ -43,28 +74,215 @@ public class Entity implements Cloneable {
 		this.content = content;
 	}
 
+	/**
+	 * Create an entity with the key and content not decoded yet. The texts
+	 * are decoded from the source buffer only when they are used for the
+	 * first time.
+	 * 
+	 * @param type
+	 *            The entity type.
+	 * @param source
+	 *            The buffer containing the ISO 8859-1 encoded texts.
+	 * @param keyStart
+	 *            The key start position on the buffer.
+	 * @param keyEnd
+	 *            The key end position on the buffer, exclusive.
+	 * @param contentStart
+	 *            The content start position on the buffer.
+	 * @param contentEnd
+	 *            The content end position on the buffer, exclusive.
+	 */
+	Entity(Type type, ByteBuffer source, int keyStart, int keyEnd,
+			int contentStart, int contentEnd) {
+		this.type = type;
+		this.source = source;
+		this.keyEnd = keyEnd;
+		this.keyStart = keyStart;
+		this.contentEnd = contentEnd;
+		this.contentStart = contentStart;
+	}
+
 	public Type getType() {
 		return type;
 	}
 
 	public void setType(Type type) {
 		this.type = type;
+		changed = true;
 	}
 
 	public String getKey() {
+		if (keyStart > -1) {
+			synchronized (this) {
+				if (keyStart > -1) {
+					key = PropertiesParser.decode(source, keyStart, keyEnd);
+					keyStart = -1;
+				}
+			}
+		}
 		return key;
 	}
 
 	public void setKey(String key) {
 		this.key = key;
+		keyStart = -1;
+		searchKey = null;
+		changed = true;
 	}
 
 	public String getContent() {
+		if (contentStart > -1) {
+			synchronized (this) {
+				if (contentStart > -1) {
+					content = PropertiesParser.decode(source, contentStart, contentEnd);
+					contentStart = -1;
+				}
+			}
+		}
 		return content;
 	}
 
 	public void setContent(String content) {
 		this.content = content;
+		contentStart = -1;
+		searchContent = null;
+		changed = true;
+	}
+
+	/**
+	 * Check if the key or the content of this entity contains the provided
+	 * filter. The lower case key and content are cached, and computed again
+	 * only after they are changed.
+	 * 
+	 * @param filter
+	 *            The filter text, already converted to lower case.
+	 * @param locale
+	 *            The locale used to convert the texts to lower case.
+	 * @return True if the key or the content contains the filter.
+	 */
+	public boolean matches(String filter, Locale locale) {
+		return getSearchKey(locale).indexOf(filter) > -1
+				|| getSearchContent(locale).indexOf(filter) > -1;
+	}
+
+	/**
+	 * Obtain the cached lower case key.
+	 * 
+	 * @param locale
+	 *            The locale used to convert the key to lower case.
+	 * @return The lower case key, never null.
+	 */
+	String getSearchKey(Locale locale) {
+		checkSearchLocale(locale);
+		if (searchKey == null) {
+			String text = getKey();
+			searchKey = text != null ? text.toLowerCase(locale) : "";
+		}
+		return searchKey;
+	}
+
+	/**
+	 * Obtain the cached lower case content.
+	 * 
+	 * @param locale
+	 *            The locale used to convert the content to lower case.
+	 * @return The lower case content, never null.
+	 */
+	String getSearchContent(Locale locale) {
+		checkSearchLocale(locale);
+		if (searchContent == null) {
+			String text = getContent();
+			searchContent = text != null ? text.toLowerCase(locale) : "";
+		}
+		return searchContent;
+	}
+
+	/**
+	 * Drop the cached lower case texts if the locale is changed.
+	 */
+	private void checkSearchLocale(Locale locale) {
+		if (!locale.equals(searchLocale)) {
+			searchLocale = locale;
+			searchKey = null;
+			searchContent = null;
+		}
+	}
+
+	/**
+	 * Get the name of the file from where this entity was loaded.
+	 * 
+	 * @return The source file name or null if the entity was not loaded from
+	 *         a file.
+	 */
+	public String getSourceFile() {
+		return sourceFile;
+	}
+
+	/**
+	 * Get the number of the line from where this entity was loaded.
+	 * 
+	 * @return The source line number or 0 if the entity was not loaded.
+	 */
+	public int getSourceLine() {
+		return sourceLine;
+	}
+
+	/**
+	 * Set the source of this entity.
+	 * 
+	 * @param sourceFile
+	 *            The file from where the entity was loaded.
+	 * @param sourceLine
+	 *            The line number from where the entity was loaded.
+	 */
+	void setSource(String sourceFile, int sourceLine) {
+		this.sourceFile = sourceFile;
+		this.sourceLine = sourceLine;
+	}
+
+	/**
+	 * Set the range of the original line of this entity.
+	 * 
+	 * @param source
+	 *            The buffer from where the entity was loaded.
+	 * @param lineStart
+	 *            The line start position on the buffer.
+	 * @param lineEnd
+	 *            The line end position on the buffer, after the line
+	 *            terminator.
+	 */
+	void setLine(ByteBuffer source, int lineStart, int lineEnd) {
+		this.source = source;
+		this.lineStart = lineStart;
+		this.lineEnd = lineEnd;
+		changed = false;
+	}
+
+	/**
+	 * Check if this entity was changed after it was loaded, or if it was not
+	 * loaded from a file at all.
+	 * 
+	 * @return True if the entity should be written again on save.
+	 */
+	public boolean isChanged() {
+		return changed || lineStart < 0;
+	}
+
+	/**
+	 * Obtain the buffer from where this entity was loaded.
+	 * 
+	 * @return The source buffer or null.
+	 */
+	ByteBuffer getSourceBuffer() {
+		return source;
+	}
+
+	int getLineStart() {
+		return lineStart;
+	}
+
+	int getLineEnd() {
+		return lineEnd;
 	}
 
 	@Override
@@ -72,6 +290,7 @@ public class Entity implements Cloneable {
 		final int prime = 31;
 		int result = 1;
 		result = prime * result + ((type == null) ? 0 : type.hashCode());
+		String key = getKey();
 		result = prime * result + ((key == null) ? 0 : key.hashCode());
 		return result;
 	}
@@ -87,10 +306,11 @@ public class Entity implements Cloneable {
 		Entity other = (Entity) obj;
 		if (type != other.type)
 			return false;
+		String key = getKey();
 		if (key == null) {
-			if (other.key != null)
+			if (other.getKey() != null)
 				return false;
-		} else if (!key.equals(other.key))
+		} else if (!key.equals(other.getKey()))
 			return false;
 		return true;
 	}
@@ -100,7 +320,7 @@ public class Entity implements Cloneable {
 	 */
 	@Override
 	protected Object clone() {
-		Entity en = new Entity(type, key, content);
+		Entity en = new Entity(type, getKey(), getContent());
 		return en;
 	}
 
@@ -0,0 +1,165 @@
+/**
+ * This file is part of PropEditor application.
+ * 
+ * Copyright (C) 2016 Claudiu Ciobotariu
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ro.ciubex.propeditor.properties;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loader of more properties files, used to obtain a merged view of the
+ * properties spread on the device partitions. The files are parsed in
+ * parallel and merged in the order in which they were added, every entity
+ * knowing its source file and line. A file could be also provided as its
+ * content, already read in memory.
+ * 
+ * @author Claudiu Ciobotariu
+ * 
+ */
+public class PropertiesFilesLoader {
+	private List<String> sourceFiles;
+	private List<File> files;
+	private List<ByteBuffer> buffers;
+	private int maxThreads;
+
+	/**
+	 * The loader constructor.
+	 * 
+	 * @param maxThreads
+	 *            The maximum number of files parsed in the same time.
+	 */
+	public PropertiesFilesLoader(int maxThreads) {
+		this.maxThreads = maxThreads > 0 ? maxThreads : 1;
+		sourceFiles = new ArrayList<String>();
+		files = new ArrayList<File>();
+		buffers = new ArrayList<ByteBuffer>();
+	}
+
+	/**
+	 * Add a file to be loaded. The files added later override the properties
+	 * defined by the files added before.
+	 * 
+	 * @param sourceFile
+	 *            The name of the original properties file.
+	 * @param file
+	 *            The readable file, the original or a copy of it.
+	 */
+	public void addFile(String sourceFile, File file) {
+		sourceFiles.add(sourceFile);
+		files.add(file);
+		buffers.add(null);
+	}
+
+	/**
+	 * Add the content of a file to be loaded, for example a file read with
+	 * root privileges. The buffer should not be changed after it is added.
+	 * 
+	 * @param sourceFile
+	 *            The name of the original properties file.
+	 * @param buffer
+	 *            The file content.
+	 */
+	public void addBuffer(String sourceFile, ByteBuffer buffer) {
+		sourceFiles.add(sourceFile);
+		files.add(null);
+		buffers.add(buffer);
+	}
+
+	/**
+	 * Load all the added files into the provided entities list. The total
+	 * time is close to the time needed by the biggest file.
+	 * 
+	 * @param properties
+	 *            The entities list where are merged all the files.
+	 * @throws IOException
+	 *             If one of the files could not be read.
+	 */
+	public void load(Entities properties) throws IOException {
+		int size = files.size();
+		if (size == 1) {
+			new LoadFile(files.get(0), buffers.get(0), sourceFiles.get(0))
+					.load(properties);
+			return;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+				maxThreads, Math.max(size, 1)));
+		List<Future<Entities>> results = new ArrayList<Future<Entities>>(size);
+		try {
+			for (int i = 0; i < size; i++) {
+				results.add(executor.submit(new LoadFile(files.get(i),
+						buffers.get(i), sourceFiles.get(i))));
+			}
+			properties.clear();
+			for (Future<Entities> result : results) {
+				properties.addAll(result.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Loading interrupted");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(String.valueOf(cause));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * The job loading one properties file, from the file or from its content.
+	 */
+	private static class LoadFile implements Callable<Entities> {
+		private File file;
+		private ByteBuffer buffer;
+		private String sourceFile;
+
+		LoadFile(File file, ByteBuffer buffer, String sourceFile) {
+			this.file = file;
+			this.buffer = buffer;
+			this.sourceFile = sourceFile;
+		}
+
+		void load(Entities entities) throws IOException {
+			if (buffer != null) {
+				entities.load(buffer.duplicate(), sourceFile);
+			} else {
+				entities.load(file, sourceFile);
+			}
+		}
+
+		@Override
+		public Entities call() throws IOException {
+			Entities entities = new Entities();
+			load(entities);
+			return entities;
+		}
+	}
+}
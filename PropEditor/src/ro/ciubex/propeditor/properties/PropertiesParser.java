@@ -0,0 +1,397 @@
+/**
+ * This file is part of PropEditor application.
+ * 
+ * Copyright (C) 2016 Claudiu Ciobotariu
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ro.ciubex.propeditor.properties;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An event driven parser of properties files. The parser reads the ISO 8859-1
+ * encoded lines from a buffer and reports to a handler the properties,
+ * comments and empty lines as ranges on the buffer, without creating any
+ * string, so the callers could scan or validate big properties files without
+ * building an Entities list.
+ * 
+ * The ranges of the lines with escape sequences or line continuations
+ * should be converted with the {@link #decode(ByteBuffer, int, int)} method,
+ * the other ranges are plain ISO 8859-1 text.
+ * 
+ * @author Claudiu Ciobotariu
+ * 
+ */
+public class PropertiesParser {
+
+	/**
+	 * The handler receiving the parser events. The ranges are positions on
+	 * the parser buffer, the end position being exclusive.
+	 */
+	public interface Handler {
+		void onProperty(PropertiesParser parser, int keyStart, int keyEnd,
+				int valueStart, int valueEnd);
+
+		void onComment(PropertiesParser parser, int keyStart, int keyEnd,
+				int valueStart, int valueEnd);
+
+		void onEmpty(PropertiesParser parser);
+
+		void onError(PropertiesParser parser, int line, String message);
+	}
+
+	private ByteBuffer buffer;
+	private int lineNumber;
+	private int lineStart;
+	private int lineEnd;
+	private boolean escaped;
+
+	/**
+	 * Create a parser for the buffer content, from its position to its
+	 * limit.
+	 * 
+	 * @param buffer
+	 *            The buffer containing the ISO 8859-1 encoded properties.
+	 */
+	public PropertiesParser(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Get the parsed buffer.
+	 * 
+	 * @return The parsed buffer.
+	 */
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Get the number of the first physical line of the current event, the
+	 * first line being 1.
+	 * 
+	 * @return The current line number.
+	 */
+	public int getLineNumber() {
+		return lineNumber;
+	}
+
+	/**
+	 * Get the start position of the current event source text, including the
+	 * leading white spaces.
+	 * 
+	 * @return The start position of the current lines.
+	 */
+	public int getLineStart() {
+		return lineStart;
+	}
+
+	/**
+	 * Get the end position of the current event source text, including the
+	 * line terminator, exclusive.
+	 * 
+	 * @return The end position of the current lines.
+	 */
+	public int getLineEnd() {
+		return lineEnd;
+	}
+
+	/**
+	 * Check if the current line contains escape sequences or line
+	 * continuations, and the ranges should be decoded.
+	 * 
+	 * @return True if the current line ranges should be decoded.
+	 */
+	public boolean hasEscapes() {
+		return escaped;
+	}
+
+	/**
+	 * Obtain the decoded text of a range from the parser buffer.
+	 * 
+	 * @param start
+	 *            The range start.
+	 * @param end
+	 *            The range end, exclusive.
+	 * @return The decoded text.
+	 */
+	public String getString(int start, int end) {
+		return decode(buffer, start, end);
+	}
+
+	/**
+	 * Parse the buffer and send the events to the handler. The lines are
+	 * processed with the same rules as java.util.Properties, except that the
+	 * comments are reported with their text split like a property, and the
+	 * empty lines are reported too.
+	 * 
+	 * @param handler
+	 *            The events handler.
+	 */
+	public void parse(Handler handler) {
+		int limit = buffer.limit();
+		int pos = buffer.position();
+		int keyStart, keyEnd, valueStart, valueEnd;
+		byte c;
+		boolean hasSep;
+		boolean precedingBackslash;
+		boolean isCommentLine;
+		String error;
+
+		lineNumber = 1;
+		while (pos < limit) {
+			lineStart = pos;
+			escaped = false;
+			// skip the leading white spaces
+			while (pos < limit && isWhiteSpace(buffer.get(pos))) {
+				pos++;
+			}
+			if (pos >= limit) {
+				break;
+			}
+			c = buffer.get(pos);
+			if (c == '\r' || c == '\n') {
+				lineEnd = skipNewLine(pos, limit);
+				handler.onEmpty(this);
+				pos = lineEnd;
+				lineNumber++;
+				continue;
+			}
+			// look for the end of the logical line
+			keyStart = pos;
+			int startLineNumber = lineNumber;
+			precedingBackslash = false;
+			while (pos < limit) {
+				c = buffer.get(pos);
+				if (c == '\r' || c == '\n') {
+					if (!precedingBackslash) {
+						break;
+					}
+					pos = skipContinuation(buffer, pos, limit);
+					lineNumber++;
+					precedingBackslash = false;
+					continue;
+				}
+				if (c == '\\') {
+					precedingBackslash = !precedingBackslash;
+					escaped = true;
+				} else {
+					precedingBackslash = false;
+				}
+				pos++;
+			}
+			valueEnd = pos;
+			lineEnd = skipNewLine(pos, limit);
+			pos = lineEnd;
+
+			// look for the key end
+			keyEnd = keyStart;
+			valueStart = valueEnd;
+			hasSep = false;
+			precedingBackslash = false;
+			isCommentLine = false;
+			while (keyEnd < valueEnd) {
+				c = buffer.get(keyEnd);
+				if (c == '\r' || c == '\n') {
+					keyEnd = skipContinuation(buffer, keyEnd, valueEnd);
+					precedingBackslash = false;
+					continue;
+				}
+				if (c == '#' || c == '!') {
+					isCommentLine = true;
+					valueStart = keyEnd + 1;
+				} else if ((c == '=' || c == ':') && !precedingBackslash) {
+					valueStart = keyEnd + 1;
+					hasSep = true;
+					break;
+				} else if (isWhiteSpace(c) && !precedingBackslash) {
+					valueStart = keyEnd + 1;
+					break;
+				}
+				if (c == '\\') {
+					precedingBackslash = !precedingBackslash;
+				} else {
+					precedingBackslash = false;
+				}
+				keyEnd++;
+			}
+			// look for the value start
+			while (valueStart < valueEnd) {
+				c = buffer.get(valueStart);
+				if (c == '\\' && valueStart + 1 < valueEnd
+						&& isNewLine(buffer.get(valueStart + 1))) {
+					valueStart = skipContinuation(buffer, valueStart + 1,
+							valueEnd);
+					continue;
+				}
+				if (!isWhiteSpace(c)) {
+					if (!hasSep && (c == '=' || c == ':')) {
+						hasSep = true;
+					} else {
+						break;
+					}
+				}
+				valueStart++;
+			}
+			int nextLineNumber = lineNumber + 1;
+			lineNumber = startLineNumber;
+			error = escaped ? checkEscapes(keyStart, valueEnd) : null;
+			if (error != null) {
+				handler.onError(this, lineNumber, error);
+			} else if (isCommentLine) {
+				handler.onComment(this, keyStart, keyEnd, valueStart, valueEnd);
+			} else {
+				handler.onProperty(this, keyStart, keyEnd, valueStart,
+						valueEnd);
+			}
+			lineNumber = nextLineNumber;
+		}
+	}
+
+	/**
+	 * Check the unicode escape sequences of a range.
+	 * 
+	 * @return The error message or null if the range is valid.
+	 */
+	private String checkEscapes(int start, int end) {
+		int pos = start;
+		byte c;
+		while (pos < end) {
+			if (buffer.get(pos++) == '\\' && pos < end) {
+				c = buffer.get(pos++);
+				if (c == 'u') {
+					for (int i = 0; i < 4; i++) {
+						c = pos < end ? buffer.get(pos++) : 0;
+						if (Character.digit((char) (0xff & c), 16) < 0) {
+							return "Malformed \\uxxxx encoding for character: \""
+									+ (char) (0xff & c) + "\"";
+						}
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Skip a new line sequence: LF, CR or CR LF.
+	 * 
+	 * @return The position after the new line sequence.
+	 */
+	private int skipNewLine(int pos, int limit) {
+		return skipNewLine(buffer, pos, limit);
+	}
+
+	/**
+	 * Check if a character is a white space separator.
+	 */
+	static boolean isWhiteSpace(byte c) {
+		return c == ' ' || c == '\t' || c == '\f';
+	}
+
+	/**
+	 * Check if a character is a new line character.
+	 */
+	static boolean isNewLine(byte c) {
+		return c == '\r' || c == '\n';
+	}
+
+	/**
+	 * Skip a new line sequence: LF, CR or CR LF.
+	 * 
+	 * @return The position after the new line sequence.
+	 */
+	static int skipNewLine(ByteBuffer buffer, int pos, int limit) {
+		if (pos < limit) {
+			if (buffer.get(pos++) == '\r' && pos < limit
+					&& buffer.get(pos) == '\n') {
+				pos++;
+			}
+		}
+		return pos;
+	}
+
+	/**
+	 * Skip a line continuation: the new line sequence and the leading white
+	 * spaces of the following line.
+	 * 
+	 * @return The position of the first character of the continued line.
+	 */
+	static int skipContinuation(ByteBuffer buffer, int pos, int limit) {
+		pos = skipNewLine(buffer, pos, limit);
+		while (pos < limit && isWhiteSpace(buffer.get(pos))) {
+			pos++;
+		}
+		return pos;
+	}
+
+	/**
+	 * Decode a range of ISO 8859-1 encoded bytes, converting the escape
+	 * sequences to their characters and removing the line continuations.
+	 * 
+	 * @param buffer
+	 *            The source buffer.
+	 * @param start
+	 *            The range start.
+	 * @param end
+	 *            The range end, exclusive.
+	 * @return The decoded text.
+	 */
+	public static String decode(ByteBuffer buffer, int start, int end) {
+		char[] out = new char[end > start ? end - start : 0];
+		int outLen = 0;
+		int pos = start;
+		char aChar;
+		while (pos < end) {
+			aChar = (char) (0xff & buffer.get(pos++));
+			if (aChar == '\\') {
+				if (pos >= end) {
+					break;
+				}
+				aChar = (char) (0xff & buffer.get(pos++));
+				if (aChar == '\r' || aChar == '\n') {
+					pos = skipContinuation(buffer, pos - 1, end);
+					continue;
+				}
+				if (aChar == 'u') {
+					int value = 0;
+					for (int i = 0; i < 4; i++) {
+						aChar = pos < end ? (char) (0xff & buffer.get(pos++))
+								: 0;
+						int digit = Character.digit(aChar, 16);
+						if (digit < 0) {
+							throw new IllegalArgumentException(
+									"Malformed \\uxxxx encoding for character: \""
+											+ aChar + "\", out: \""
+											+ new String(out, 0, outLen) + "\"");
+						}
+						value = (value << 4) + digit;
+					}
+					aChar = (char) value;
+				} else if (aChar == 't') {
+					aChar = '\t';
+				} else if (aChar == 'r') {
+					aChar = '\r';
+				} else if (aChar == 'n') {
+					aChar = '\n';
+				} else if (aChar == 'f') {
+					aChar = '\f';
+				}
+			}
+			out[outLen++] = aChar;
+		}
+		return new String(out, 0, outLen);
+	}
+}
@@ -0,0 +1,365 @@
+/**
+ * This file is part of PropEditor application.
+ * 
+ * Copyright (C) 2016 Claudiu Ciobotariu
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ro.ciubex.propeditor.properties;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+
+/**
+ * Serializer of the entities. The characters are escaped directly into a
+ * reused buffer, flushed to the output only when it is full, so writing the
+ * entities does not allocate anything per entity.
+ * 
+ * @author Claudiu Ciobotariu
+ * 
+ */
+class PropertiesWriter {
+	private static final int BUFFER_SIZE = 8192;
+
+	/** A table of hex digits */
+	private static final char[] hexDigit = { '0', '1', '2', '3', '4', '5', '6',
+			'7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
+
+	private Writer writer;
+	private OutputStream outputStream;
+	private char[] buf;
+	private byte[] byteBuf;
+	private int len;
+	private boolean escapeUnicode;
+	private boolean lineOpen;
+
+	/**
+	 * The line terminator written after the entities, the one of the last
+	 * loaded line written, so the rewritten lines keep the file line
+	 * terminators.
+	 */
+	private String lineTerminator = "\n";
+
+	/**
+	 * Create a serializer writing characters.
+	 * 
+	 * @param writer
+	 *            The output character stream.
+	 */
+	PropertiesWriter(Writer writer) {
+		this.writer = writer;
+		buf = new char[BUFFER_SIZE];
+	}
+
+	/**
+	 * Create a serializer writing ISO 8859-1 bytes, the characters outside
+	 * this charset being written as &#92;uxxxx escape sequences.
+	 * 
+	 * @param outputStream
+	 *            The output byte stream.
+	 */
+	PropertiesWriter(OutputStream outputStream) {
+		this.outputStream = outputStream;
+		buf = new char[BUFFER_SIZE];
+		byteBuf = new byte[BUFFER_SIZE];
+		escapeUnicode = true;
+	}
+
+	/**
+	 * Write an entity as one line: the comments, an empty line or the key, an
+	 * ASCII <code>=</code> and the content. A loaded entity keeps the line
+	 * terminator of its original line, and the bytes following it at the end
+	 * of the file, or no terminator if its line had none.
+	 * 
+	 * @param entity
+	 *            The entity to be written.
+	 * @throws IOException
+	 */
+	void write(Entity entity) throws IOException {
+		if (lineOpen) {
+			newLine();
+			lineOpen = false;
+		}
+		ByteBuffer source = entity.getSourceBuffer();
+		int lineStart = entity.getLineStart();
+		int lineEnd = entity.getLineEnd();
+		int terminator = -1;
+		if (source != null && lineStart > -1) {
+			terminator = lastTerminator(source, lineStart, lineEnd);
+			if (terminator > -1) {
+				lineTerminator = terminatorAt(source, terminator);
+			}
+		}
+		switch (entity.getType()) {
+		case COMMENT:
+			writeComment(entity.getKey(), entity.getContent());
+			break;
+		case EMPTY:
+			append(' ');
+			break;
+		case PROPERTY:
+			writeConverted(entity.getKey(), true);
+			append('=');
+			writeConverted(entity.getContent(), false);
+			break;
+		}
+		if (source == null || lineStart < 0) {
+			newLine();
+		} else if (terminator < 0) {
+			lineOpen = true;
+		} else {
+			newLine();
+			writeRaw(source, terminator + lineTerminator.length(), lineEnd);
+		}
+	}
+
+	/**
+	 * Look for the last line terminator of an original line.
+	 * 
+	 * @return The terminator position or -1 if the line has no terminator.
+	 */
+	private static int lastTerminator(ByteBuffer source, int start, int end) {
+		byte b;
+		for (int p = end - 1; p >= start; p--) {
+			b = source.get(p);
+			if (b == '\n') {
+				return p > start && source.get(p - 1) == '\r' ? p - 1 : p;
+			} else if (b == '\r') {
+				return p;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Obtain the line terminator starting at the provided position.
+	 */
+	private static String terminatorAt(ByteBuffer source, int position) {
+		if (source.get(position) == '\n') {
+			return "\n";
+		}
+		return position + 1 < source.limit()
+				&& source.get(position + 1) == '\n' ? "\r\n" : "\r";
+	}
+
+	/**
+	 * Copy a range of the loaded ISO 8859-1 text as it is. If the range does
+	 * not end with a line terminator, one is added before the next entity.
+	 * 
+	 * @param source
+	 *            The buffer from where the entities were loaded.
+	 * @param start
+	 *            The range start.
+	 * @param end
+	 *            The range end, exclusive.
+	 * @throws IOException
+	 */
+	void writeRaw(ByteBuffer source, int start, int end) throws IOException {
+		if (start >= end) {
+			return;
+		}
+		flushBuffer();
+		ByteBuffer from = source.duplicate();
+		from.limit(end);
+		from.position(start);
+		if (writer != null) {
+			while (from.hasRemaining()) {
+				buf[len++] = (char) (from.get() & 0xFF);
+				if (len == buf.length) {
+					flushBuffer();
+				}
+			}
+		} else if (from.hasArray()) {
+			outputStream.write(from.array(), from.arrayOffset() + start,
+					end - start);
+		} else {
+			int count;
+			while (from.hasRemaining()) {
+				count = Math.min(byteBuf.length, from.remaining());
+				from.get(byteBuf, 0, count);
+				outputStream.write(byteBuf, 0, count);
+			}
+		}
+		byte last = source.get(end - 1);
+		lineOpen = last != '\n' && last != '\r';
+		if (!lineOpen) {
+			lineTerminator = terminatorAt(source,
+					lastTerminator(source, start, end));
+		}
+	}
+
+	/**
+	 * Write the buffered characters to the output.
+	 * 
+	 * @throws IOException
+	 */
+	void flush() throws IOException {
+		flushBuffer();
+		if (writer != null) {
+			writer.flush();
+		} else {
+			outputStream.flush();
+		}
+	}
+
+	/**
+	 * Write the comment key and content separated by a space. The comment
+	 * lines are prefixed with <code>#</code> if they do not start with it.
+	 */
+	private void writeComment(String key, String content) throws IOException {
+		if (key == null || key.length() == 0 || key.charAt(0) != '#') {
+			append('#');
+		}
+		writeCommentText(key);
+		append(' ');
+		writeCommentText(content);
+	}
+
+	/**
+	 * Write a part of the comment, escaping the characters outside ISO 8859-1
+	 * and starting a new comment line after each line terminator.
+	 */
+	private void writeCommentText(String text) throws IOException {
+		if (text == null) {
+			return;
+		}
+		int textLen = text.length();
+		char c;
+		for (int i = 0; i < textLen; i++) {
+			c = text.charAt(i);
+			if (c > '\u00ff') {
+				appendUnicode(c);
+			} else if (c == '\n' || c == '\r') {
+				newLine();
+				if (c == '\r' && i != textLen - 1 && text.charAt(i + 1) == '\n') {
+					i++;
+				}
+				if (i == textLen - 1
+						|| (text.charAt(i + 1) != '#' && text.charAt(i + 1) != '!')) {
+					append('#');
+				}
+			} else {
+				append(c);
+			}
+		}
+	}
+
+	/**
+	 * Write a text converting the special characters to escape sequences.
+	 * 
+	 * @param text
+	 *            The text to be written.
+	 * @param escapeSpace
+	 *            Escape all the spaces, not only the leading one.
+	 */
+	private void writeConverted(String text, boolean escapeSpace)
+			throws IOException {
+		if (text == null) {
+			return;
+		}
+		int textLen = text.length();
+		char aChar;
+		for (int x = 0; x < textLen; x++) {
+			aChar = text.charAt(x);
+			// Handle common case first, selecting largest block that
+			// avoids the specials below
+			if ((aChar > 61) && (aChar < 127)) {
+				if (aChar == '\\') {
+					append('\\');
+				}
+				append(aChar);
+				continue;
+			}
+			switch (aChar) {
+			case ' ':
+				if (x == 0 || escapeSpace)
+					append('\\');
+				append(' ');
+				break;
+			case '\t':
+				append('\\');
+				append('t');
+				break;
+			case '\n':
+				append('\\');
+				append('n');
+				break;
+			case '\r':
+				append('\\');
+				append('r');
+				break;
+			case '\f':
+				append('\\');
+				append('f');
+				break;
+			default:
+				if (escapeUnicode && aChar > '\u00ff') {
+					appendUnicode(aChar);
+				} else {
+					append(aChar);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Append a character as an &#92;uxxxx escape sequence.
+	 */
+	private void appendUnicode(char c) throws IOException {
+		append('\\');
+		append('u');
+		append(hexDigit[(c >> 12) & 0xF]);
+		append(hexDigit[(c >> 8) & 0xF]);
+		append(hexDigit[(c >> 4) & 0xF]);
+		append(hexDigit[c & 0xF]);
+	}
+
+	/**
+	 * Append a line terminator.
+	 */
+	private void newLine() throws IOException {
+		for (int i = 0; i < lineTerminator.length(); i++) {
+			append(lineTerminator.charAt(i));
+		}
+	}
+
+	/**
+	 * Append a character to the buffer, flushing the buffer if it is full.
+	 */
+	private void append(char c) throws IOException {
+		if (len == buf.length) {
+			flushBuffer();
+		}
+		buf[len++] = c;
+	}
+
+	/**
+	 * Write the buffer content to the output.
+	 */
+	private void flushBuffer() throws IOException {
+		if (len > 0) {
+			if (writer != null) {
+				writer.write(buf, 0, len);
+			} else {
+				for (int i = 0; i < len; i++) {
+					byteBuf[i] = (byte) buf[i];
+				}
+				outputStream.write(byteBuf, 0, len);
+			}
+			len = 0;
+		}
+	}
+}
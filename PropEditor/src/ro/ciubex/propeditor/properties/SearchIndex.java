@@ -0,0 +1,296 @@
+/**
+ * This file is part of PropEditor application.
+ * 
+ * Copyright (C) 2016 Claudiu Ciobotariu
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ro.ciubex.propeditor.properties;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A trigram inverted index of the properties keys and values, used to find
+ * quickly the properties containing a text.
+ * 
+ * Every indexed property receives a slot number, in the order in which the
+ * properties are added, and for each trigram is kept the sorted list of the
+ * slots where it appears. The removed properties and the trigrams of the
+ * changed texts are not removed from the lists, they are filtered out when
+ * the candidates are checked against the searched text.
+ * 
+ * @author Claudiu Ciobotariu
+ * 
+ */
+class SearchIndex {
+	static final int GRAM_LENGTH = 3;
+
+	private Locale locale;
+	private Entity[] slots;
+	private int slotCount;
+	private int liveCount;
+	private Map<Entity, Integer> slotOf;
+	private Map<Long, Postings> postings;
+
+	/**
+	 * Create an empty index.
+	 * 
+	 * @param locale
+	 *            The locale used to convert the texts to lower case.
+	 */
+	SearchIndex(Locale locale) {
+		this.locale = locale;
+		slots = new Entity[256];
+		slotOf = new IdentityHashMap<Entity, Integer>();
+		postings = new HashMap<Long, Postings>();
+	}
+
+	/**
+	 * Get the locale used to convert the texts to lower case.
+	 * 
+	 * @return The index locale.
+	 */
+	Locale getLocale() {
+		return locale;
+	}
+
+	/**
+	 * Add a property to the index.
+	 * 
+	 * @param entity
+	 *            The property to be indexed.
+	 */
+	void add(Entity entity) {
+		if (slotCount == slots.length) {
+			Entity[] buf = new Entity[slotCount * 2];
+			System.arraycopy(slots, 0, buf, 0, slotCount);
+			slots = buf;
+		}
+		int slot = slotCount++;
+		slots[slot] = entity;
+		slotOf.put(entity, slot);
+		liveCount++;
+		indexText(entity.getSearchKey(locale), slot);
+		indexText(entity.getSearchContent(locale), slot);
+	}
+
+	/**
+	 * Remove a property from the index.
+	 * 
+	 * @param entity
+	 *            The property to be removed.
+	 */
+	void remove(Entity entity) {
+		Integer slot = slotOf.remove(entity);
+		if (slot != null) {
+			slots[slot] = null;
+			liveCount--;
+			if (slotCount > 64 && liveCount < slotCount / 2) {
+				compact();
+			}
+		}
+	}
+
+	/**
+	 * Index again a property after its key or content was changed.
+	 * 
+	 * @param entity
+	 *            The changed property.
+	 */
+	void update(Entity entity) {
+		Integer slot = slotOf.get(entity);
+		if (slot != null) {
+			indexText(entity.getSearchKey(locale), slot);
+			indexText(entity.getSearchContent(locale), slot);
+		}
+	}
+
+	/**
+	 * Look for the properties containing the filter on the key or on the
+	 * content.
+	 * 
+	 * @param filter
+	 *            The searched text, already converted to lower case.
+	 * @return The properties found, in the order in which they were added, or
+	 *         null if the filter is too short to use the index.
+	 */
+	List<Entity> search(String filter) {
+		int len = filter.length();
+		if (len < GRAM_LENGTH) {
+			return null;
+		}
+		List<Entity> result = new ArrayList<Entity>();
+		Postings[] lists = new Postings[len - GRAM_LENGTH + 1];
+		for (int i = 0; i < lists.length; i++) {
+			lists[i] = postings.get(gram(filter, i));
+			if (lists[i] == null) {
+				return result;
+			}
+		}
+		Arrays.sort(lists, new Comparator<Postings>() {
+			@Override
+			public int compare(Postings p1, Postings p2) {
+				return p1.size - p2.size;
+			}
+		});
+		int candidatesCount = lists[0].size;
+		int[] candidates = new int[candidatesCount];
+		System.arraycopy(lists[0].slots, 0, candidates, 0, candidatesCount);
+		for (int i = 1; i < lists.length && candidatesCount > 0; i++) {
+			if (lists[i] != lists[i - 1]) {
+				candidatesCount = intersect(candidates, candidatesCount,
+						lists[i]);
+			}
+		}
+		Entity entity;
+		for (int i = 0; i < candidatesCount; i++) {
+			entity = slots[candidates[i]];
+			if (entity != null && entity.matches(filter, locale)) {
+				result.add(entity);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Keep on the candidates array only the slots present on the postings
+	 * list. Both are sorted.
+	 * 
+	 * @return The number of candidates kept.
+	 */
+	private static int intersect(int[] candidates, int count, Postings list) {
+		int i = 0, j = 0, k = 0;
+		int[] other = list.slots;
+		while (i < count && j < list.size) {
+			if (candidates[i] < other[j]) {
+				i++;
+			} else if (candidates[i] > other[j]) {
+				j++;
+			} else {
+				candidates[k++] = candidates[i];
+				i++;
+				j++;
+			}
+		}
+		return k;
+	}
+
+	/**
+	 * Add all the trigrams of a text to the index.
+	 * 
+	 * @param text
+	 *            The lower case text.
+	 * @param slot
+	 *            The slot of the property containing the text.
+	 */
+	private void indexText(String text, int slot) {
+		int last = text.length() - GRAM_LENGTH;
+		Long gram;
+		Postings list;
+		for (int i = 0; i <= last; i++) {
+			gram = gram(text, i);
+			list = postings.get(gram);
+			if (list == null) {
+				list = new Postings();
+				postings.put(gram, list);
+			}
+			list.add(slot);
+		}
+	}
+
+	/**
+	 * Pack the three characters starting from an offset into a long value.
+	 */
+	private static Long gram(String text, int offset) {
+		return Long.valueOf(((long) text.charAt(offset) << 32)
+				| ((long) text.charAt(offset + 1) << 16)
+				| text.charAt(offset + 2));
+	}
+
+	/**
+	 * Build again the index only with the live properties, dropping the
+	 * removed slots and the stale trigrams.
+	 */
+	private void compact() {
+		Entity[] live = new Entity[Math.max(256, liveCount * 2)];
+		int count = 0;
+		for (int i = 0; i < slotCount; i++) {
+			if (slots[i] != null) {
+				live[count++] = slots[i];
+			}
+		}
+		slots = live;
+		slotCount = 0;
+		liveCount = 0;
+		slotOf.clear();
+		postings.clear();
+		for (int i = 0; i < count; i++) {
+			Entity entity = slots[i];
+			slots[i] = null;
+			add(entity);
+		}
+	}
+
+	/**
+	 * Sorted list of slots where a trigram is present.
+	 */
+	private static class Postings {
+		int[] slots = new int[4];
+		int size;
+
+		/**
+		 * Add a slot keeping the list sorted and without duplicates. The
+		 * slots are usually added in ascending order, so the common case is
+		 * an append.
+		 */
+		void add(int slot) {
+			if (size > 0 && slots[size - 1] >= slot) {
+				int low = 0, high = size - 1, mid;
+				while (low <= high) {
+					mid = (low + high) >>> 1;
+					if (slots[mid] < slot) {
+						low = mid + 1;
+					} else if (slots[mid] > slot) {
+						high = mid - 1;
+					} else {
+						return;
+					}
+				}
+				insert(low, slot);
+			} else {
+				insert(size, slot);
+			}
+		}
+
+		private void insert(int pos, int slot) {
+			if (size == slots.length) {
+				int[] buf = new int[size * 2];
+				System.arraycopy(slots, 0, buf, 0, size);
+				slots = buf;
+			}
+			if (pos < size) {
+				System.arraycopy(slots, pos, slots, pos + 1, size - pos);
+			}
+			slots[pos] = slot;
+			size++;
+		}
+	}
+}
@@ -0,0 +1,187 @@
+/**
+ * This file is part of PropEditor application.
+ * 
+ * Copyright (C) 2016 Claudiu Ciobotariu
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ro.ciubex.propeditor.tasks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import ro.ciubex.propeditor.PropEditorApplication;
+import ro.ciubex.propeditor.R;
+import ro.ciubex.propeditor.models.Constants;
+import ro.ciubex.propeditor.properties.Changeset;
+import ro.ciubex.propeditor.properties.ChangesetFile;
+import ro.ciubex.propeditor.properties.Entities;
+import android.app.Application;
+import android.os.AsyncTask;
+
+/**
+ * An asynchronous task used to export the properties changed from the stock
+ * file to a changeset file, or to import a changeset file.
+ * 
+ * @author Claudiu Ciobotariu
+ * 
+ */
+public class ChangesetTask extends
+		AsyncTask<Void, Void, DefaultAsyncTaskResult> {
+	private static final String TAG = ChangesetTask.class.getName();
+
+	/**
+	 * Responder used on export and import process.
+	 */
+	public interface Responder {
+		Application getApplication();
+
+		void startChangeset();
+
+		void endChangeset(DefaultAsyncTaskResult result);
+	}
+
+	private Responder responder;
+	private PropEditorApplication application;
+	private DefaultAsyncTaskResult defaultResult;
+	private String fileName;
+	private String stockFileName;
+	private Entities properties;
+	private boolean importChanges;
+	private boolean deflate;
+
+	/**
+	 * Constructor of this async task.
+	 * 
+	 * @param responder
+	 *            The process responder provided to get some application info
+	 * @param fileName
+	 *            The full path of the changeset file
+	 * @param stockFileName
+	 *            The stock properties file, the original backup being used if
+	 *            it exists
+	 * @param properties
+	 *            The edited properties
+	 * @param importChanges
+	 *            True to import the changeset file, false to export it
+	 * @param deflate
+	 *            True if the exported changes should be compressed
+	 */
+	public ChangesetTask(Responder responder, String fileName,
+			String stockFileName, Entities properties, boolean importChanges,
+			boolean deflate) {
+		this.responder = responder;
+		this.fileName = fileName;
+		this.stockFileName = stockFileName;
+		this.properties = properties;
+		this.importChanges = importChanges;
+		this.deflate = deflate;
+		application = (PropEditorApplication) responder.getApplication();
+	}
+
+	/**
+	 * Method invoked on the background thread.
+	 */
+	@Override
+	protected DefaultAsyncTaskResult doInBackground(Void... params) {
+		defaultResult = new DefaultAsyncTaskResult();
+		defaultResult.resultId = Constants.OK;
+		try {
+			if (importChanges) {
+				importChangeset();
+			} else {
+				exportChangeset();
+			}
+		} catch (IOException e) {
+			defaultResult.resultId = Constants.ERROR;
+			defaultResult.resultMessage = application.getString(
+					R.string.changeset_exception, fileName, "IOException",
+					e.getMessage());
+			application.logE(TAG, defaultResult.resultMessage, e);
+		} catch (IllegalArgumentException e) {
+			defaultResult.resultId = Constants.ERROR;
+			defaultResult.resultMessage = application.getString(
+					R.string.changeset_exception, stockFileName,
+					"IllegalArgumentException", e.getMessage());
+			application.logE(TAG, defaultResult.resultMessage, e);
+		}
+		return defaultResult;
+	}
+
+	/**
+	 * Method invoked on the UI thread before the task is executed.
+	 */
+	@Override
+	protected void onPreExecute() {
+		super.onPreExecute();
+		responder.startChangeset();
+	}
+
+	/**
+	 * Method invoked on the UI thread after the background computation
+	 * finishes.
+	 */
+	@Override
+	protected void onPostExecute(DefaultAsyncTaskResult result) {
+		super.onPostExecute(result);
+		responder.endChangeset(result);
+	}
+
+	/**
+	 * Compare the properties with the stock file and write the changes.
+	 */
+	private void exportChangeset() throws IOException {
+		File stockFile = new File(stockFileName + ".bak");
+		if (!stockFile.canRead()) {
+			stockFile = new File(stockFileName);
+		}
+		Entities stock = new Entities();
+		stock.load(stockFile);
+		Changeset changeset = Changeset.diff(stock, properties);
+		OutputStream outputStream = new BufferedOutputStream(
+				new FileOutputStream(fileName));
+		try {
+			ChangesetFile.write(changeset, outputStream, deflate);
+		} finally {
+			outputStream.close();
+		}
+		defaultResult.resultMessage = application.getString(
+				R.string.changeset_exported, changeset.size(), fileName);
+	}
+
+	/**
+	 * Read the changes and apply them on the properties.
+	 */
+	private void importChangeset() throws IOException {
+		Changeset changeset;
+		InputStream inputStream = new BufferedInputStream(new FileInputStream(
+				fileName));
+		try {
+			changeset = ChangesetFile.read(inputStream);
+		} finally {
+			inputStream.close();
+		}
+		if (properties.apply(changeset)) {
+			properties.setModified(true);
+		}
+		defaultResult.resultMessage = application.getString(
+				R.string.changeset_imported, changeset.size(), fileName);
+	}
+}
@@ -19,15 +19,16 @@
 package ro.ciubex.propeditor.tasks;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import ro.ciubex.propeditor.PropEditorApplication;
 import ro.ciubex.propeditor.R;
 import ro.ciubex.propeditor.models.Constants;
 import ro.ciubex.propeditor.properties.Entities;
+import ro.ciubex.propeditor.properties.PropertiesFilesLoader;
 import android.app.Application;
 import android.os.AsyncTask;
 
@@ -55,8 +56,8 @@ public class LoadPropertiesTask extends
 	private Responder responder;
 	private PropEditorApplication application;
 	private DefaultAsyncTaskResult defaultResult;
-	private String privateDir;
 	private String fileName;
+	private String[] fileNames;
 	private Entities properties;
 
 	/**
@@ -71,12 +72,32 @@ public class LoadPropertiesTask extends
 	 */
 	public LoadPropertiesTask(Responder responder, String fileName,
 			Entities properties) {
+		this(responder, new String[] { fileName }, properties);
+	}
+
+	/**
+	 * Constructor of this async task used to load more properties files into
+	 * a merged list. The files are parsed in parallel, the missing files are
+	 * skipped, and the properties from a file override the properties with
+	 * the same key from the previous files.
+	 * 
+	 * @param responder
+	 *            The process responder provided to get some application info
+	 * @param fileNames
+	 *            The full paths of the properties files
+	 * @param properties
+	 *            The propertied to be loaded
+	 */
+	public LoadPropertiesTask(Responder responder, String[] fileNames,
+			Entities properties) {
 		this.responder = responder;
-		this.fileName = fileName;
+		this.fileNames = fileNames;
+		this.fileName = Arrays.toString(fileNames);
+		if (fileNames.length == 1) {
+			this.fileName = fileNames[0];
+		}
 		this.properties = properties;
 		application = (PropEditorApplication) responder.getApplication();
-		privateDir = application.getFilesDir() != null ?
-				application.getFilesDir().getAbsolutePath() : null;
 	}
 
 	/**
@@ -110,56 +131,51 @@ public class LoadPropertiesTask extends
 	}
 
 	/**
-	 * Open and load properties file.
+	 * Open and load properties files. The files are read in memory and
+	 * parsed directly from the read buffers, the files which can not be
+	 * read by the application being read with root privileges directly in
+	 * memory.
 	 */
 	private void loadTheProperties() {
-		File f = new File(fileName);
-		if (f.exists() && f.isFile()) {
-			if (!f.canRead()) {
-				if (application.getUnixShell().hasRootAccess() && privateDir != null) {
-					f = prepareOriginalFile();
+		PropertiesFilesLoader loader = new PropertiesFilesLoader(Runtime
+				.getRuntime().availableProcessors());
+		boolean found = false;
+		for (String name : fileNames) {
+			File f = new File(name);
+			if (f.exists() && f.isFile()) {
+				if (f.canRead()) {
+					loader.addFile(name, f);
+				} else if (!addRootContent(loader, name)) {
+					return;
 				}
+				found = true;
+			} else if (fileNames.length == 1) {
+				break;
 			}
-			if (f != null && f.canRead()) {
-				InputStream inputStream = null;
-				try {
-					inputStream = new FileInputStream(f);
-					properties.load(inputStream);
-					defaultResult.resultMessage = getStringMessage(R.string.properties_loaded,
-									properties.size());
-				} catch (IllegalArgumentException e) {
-					defaultResult.resultId = Constants.ERROR_REPORT;
-					defaultResult.resultMessage = getStringMessage(R.string.loading_exception_report,
-							fileName, "IllegalArgumentException: ", e.getMessage());
-					application.logE(TAG, defaultResult.resultMessage, e);
-				} catch (FileNotFoundException e) {
-					defaultResult.resultId = Constants.ERROR_REPORT;
-					defaultResult.resultMessage = getStringMessage(R.string.loading_exception_report,
-							fileName, "FileNotFoundException", e.getMessage());
-					application.logE(TAG, defaultResult.resultMessage, e);
-				} catch (IOException e) {
-					defaultResult.resultId = Constants.ERROR_REPORT;
-					defaultResult.resultMessage = getStringMessage(R.string.loading_exception_report,
-							fileName, "IOException", e.getMessage());
-					application.logE(TAG, defaultResult.resultMessage, e);
-				} finally {
-					if (inputStream != null) {
-						try {
-							inputStream.close();
-						} catch (IOException e) {
-						}
-					}
-				}
-			} else {
-				if (application.getUnixShell().hasRootAccess()) {
-					defaultResult.resultId = Constants.ERROR;
-					defaultResult.resultMessage = getStringMessage(R.string.unable_to_read, fileName);
-					application.logE(TAG, defaultResult.resultMessage);
-				} else {
-					defaultResult.resultId = Constants.ERROR;
-					defaultResult.resultMessage = getStringMessage(R.string.no_root_privileges);
-					application.logE(TAG, defaultResult.resultMessage);
+		}
+		if (found) {
+			try {
+				loader.load(properties);
+				if (properties == application.getEntities()) {
+					application.setLoadedEntities(properties);
 				}
+				defaultResult.resultMessage = getStringMessage(R.string.properties_loaded,
+								properties.size());
+			} catch (IllegalArgumentException e) {
+				defaultResult.resultId = Constants.ERROR_REPORT;
+				defaultResult.resultMessage = getStringMessage(R.string.loading_exception_report,
+						fileName, "IllegalArgumentException: ", e.getMessage());
+				application.logE(TAG, defaultResult.resultMessage, e);
+			} catch (FileNotFoundException e) {
+				defaultResult.resultId = Constants.ERROR_REPORT;
+				defaultResult.resultMessage = getStringMessage(R.string.loading_exception_report,
+						fileName, "FileNotFoundException", e.getMessage());
+				application.logE(TAG, defaultResult.resultMessage, e);
+			} catch (IOException e) {
+				defaultResult.resultId = Constants.ERROR_REPORT;
+				defaultResult.resultMessage = getStringMessage(R.string.loading_exception_report,
+						fileName, "IOException", e.getMessage());
+				application.logE(TAG, defaultResult.resultMessage, e);
 			}
 		} else {
 			defaultResult.resultId = Constants.ERROR;
@@ -169,6 +185,35 @@ public class LoadPropertiesTask extends
 		}
 	}
 
+	/**
+	 * Read with root privileges a file which can not be read by the
+	 * application, adding its content to the loader.
+	 * 
+	 * @param loader
+	 *            The properties loader.
+	 * @param name
+	 *            The full path of the properties file.
+	 * @return True if the file content was added, otherwise the error is set
+	 *         on the result.
+	 */
+	private boolean addRootContent(PropertiesFilesLoader loader, String name) {
+		if (!application.getUnixShell().hasRootAccess()) {
+			defaultResult.resultId = Constants.ERROR;
+			defaultResult.resultMessage = getStringMessage(R.string.no_root_privileges);
+			application.logE(TAG, defaultResult.resultMessage);
+			return false;
+		}
+		byte[] content = application.getUnixShell().readFile(name);
+		if (content == null) {
+			defaultResult.resultId = Constants.ERROR;
+			defaultResult.resultMessage = getStringMessage(R.string.unable_to_read, name);
+			application.logE(TAG, defaultResult.resultMessage);
+			return false;
+		}
+		loader.addBuffer(name, ByteBuffer.wrap(content));
+		return true;
+	}
+
 	/**
 	 * Prepare the message string based on the resource id and parameters.
 	 *
@@ -180,31 +225,4 @@ public class LoadPropertiesTask extends
 		return responder.getApplication().getString(resId, formatArgs);
 	}
 
-	/**
-	 * Create a copy of original file on the private data folder to be read.
-	 * 
-	 * @return The readable file or null if is not available.
-	 */
-	private File prepareOriginalFile() {
-		File destFile = new File(privateDir + File.separator + "tmp"
-				+ File.separator + PropEditorApplication.BUILD_PROP);
-		if (destFile.exists()) {
-			destFile.delete();
-		} else {
-			if (!destFile.getParentFile().exists()) {
-				destFile.getParentFile().getAbsoluteFile().mkdirs();
-			}
-		}
-		if (application.getUnixShell().runUnixCommand(
-				"cat " + fileName + " > " + destFile.getAbsolutePath())) {
-			application.getUnixShell().runUnixCommand(
-					"chmod 644 " + destFile.getAbsolutePath());
-			application.getUnixShell().runUnixCommand(
-					"chcon u:object_r:app_data_file:s0:c512,c768 " + destFile.getAbsolutePath());
-		} else {
-			destFile = null;
-		}
-		return destFile;
-	}
-
 }
@@ -18,10 +18,15 @@
  */
 package ro.ciubex.propeditor.tasks;
 
+import java.io.File;
+import java.io.IOException;
+
 import ro.ciubex.propeditor.PropEditorApplication;
 import ro.ciubex.propeditor.R;
 import ro.ciubex.propeditor.models.Constants;
+import ro.ciubex.propeditor.properties.BackupStore;
 import ro.ciubex.propeditor.util.Utilities;
+import ro.ciubex.shell.UnixCommands;
 import android.app.Application;
 import android.os.AsyncTask;
 
@@ -33,6 +38,7 @@ import android.os.AsyncTask;
  */
 public class RestorePropertiesTask extends
 		AsyncTask<Void, Void, DefaultAsyncTaskResult> {
+	private static final String TAG = RestorePropertiesTask.class.getName();
 
 	/**
 	 * Responder used on loading process.
@@ -49,6 +55,7 @@ public class RestorePropertiesTask extends
 	private PropEditorApplication application;
 	private DefaultAsyncTaskResult defaultResult;
 	private String fileName;
+	private BackupStore.Version version;
 
 	/**
 	 * The constructor.
@@ -59,8 +66,25 @@ public class RestorePropertiesTask extends
 	 *            The full path for file name of properties
 	 */
 	public RestorePropertiesTask(Responder responder, String fileName) {
+		this(responder, fileName, null);
+	}
+
+	/**
+	 * The constructor used to restore a version from the backup store.
+	 * 
+	 * @param responder
+	 *            The process responder provided to get some application info
+	 * @param fileName
+	 *            The full path for file name of properties
+	 * @param version
+	 *            The version to be restored, or null to restore the original
+	 *            backup file.
+	 */
+	public RestorePropertiesTask(Responder responder, String fileName,
+			BackupStore.Version version) {
 		this.responder = responder;
 		this.fileName = fileName;
+		this.version = version;
 		application = (PropEditorApplication) responder.getApplication();
 	}
 
@@ -98,27 +122,11 @@ public class RestorePropertiesTask extends
 	 * Initiating the restore method.
 	 */
 	private void restoreTheProperties() {
-		boolean shouldMountSystem = false;
 		boolean continueRestore = application.getUnixShell().hasRootAccess();
-		if (continueRestore) {
-			shouldMountSystem = application.getUnixShell()
-					.checkPartitionMountFlags(Constants.SYSTEM_PARTITION,
-							Constants.READ_WRITE) != true;
-			if (shouldMountSystem) {
-				continueRestore = application.getUnixShell().mountPartition(
-						Constants.SYSTEM_PARTITION, Constants.READ_WRITE);
-			}
-			if (continueRestore) {
-				restoreBackupFile();
-				if (shouldMountSystem) {
-					application.getUnixShell().mountPartition(
-							Constants.SYSTEM_PARTITION, Constants.READ_ONLY);
-				}
-			} else {
-				defaultResult.resultId = Constants.ERROR;
-				defaultResult.resultMessage = responder.getApplication().getString(
-						R.string.system_no_mount);
-			}
+		if (continueRestore && version != null) {
+			restoreVersion();
+		} else if (continueRestore) {
+			restoreBackupFile();
 		} else {
 			defaultResult.resultId = Constants.ERROR;
 			defaultResult.resultMessage = application
@@ -127,15 +135,67 @@ public class RestorePropertiesTask extends
 	}
 
 	/**
-	 * Method used to restore the original file.
+	 * Restore a version from the backup store. The current file is saved
+	 * first as a new version, so the restoring can be undone.
+	 */
+	private void restoreVersion() {
+		File filesDir = application.getFilesDir();
+		File file = new File(fileName);
+		File restored = new File(filesDir, file.getName());
+		try {
+			if (file.canRead()) {
+				application.getBackupStore().add(fileName, file);
+			}
+			application.getBackupStore().restore(version, restored);
+		} catch (IOException e) {
+			defaultResult.resultId = Constants.ERROR;
+			defaultResult.resultMessage = responder.getApplication()
+					.getString(R.string.restore_file_failed);
+			application.logE(TAG, defaultResult.resultMessage, e);
+			return;
+		}
+		boolean isSystem = fileName.startsWith(Constants.SYSTEM_PARTITION);
+		boolean shouldMountSystem = isSystem
+				&& !application.getUnixShell().checkPartitionMountFlags(
+						Constants.SYSTEM_PARTITION, Constants.READ_WRITE);
+		int exitCode = application.getUnixShell().replaceFile(
+				restored.getAbsolutePath(), fileName, null,
+				shouldMountSystem ? Constants.SYSTEM_PARTITION : null);
+		if (exitCode == 0) {
+			defaultResult.resultMessage = responder.getApplication()
+					.getString(R.string.file_restored, fileName);
+		} else if (exitCode == UnixCommands.MOUNT_FAILED) {
+			defaultResult.resultId = Constants.ERROR;
+			defaultResult.resultMessage = responder.getApplication()
+					.getString(R.string.system_no_mount);
+		} else {
+			defaultResult.resultId = Constants.ERROR;
+			defaultResult.resultMessage = responder.getApplication()
+					.getString(R.string.restore_file_failed);
+		}
+	}
+
+	/**
+	 * Method used to restore the original file. The system partition is
+	 * remounted, the file moved and the partition remounted back as a single
+	 * batch of commands.
 	 */
 	private void restoreBackupFile() {
 		String backupFileName = fileName + ".bak";
 		if (Utilities.existFile(backupFileName)) {
-			if (application.getUnixShell().runUnixCommand(
-					"mv " + backupFileName + " " + fileName)) {
+			boolean shouldMountSystem = !application.getUnixShell()
+					.checkPartitionMountFlags(Constants.SYSTEM_PARTITION,
+							Constants.READ_WRITE);
+			int exitCode = application.getUnixShell().moveFile(backupFileName,
+					fileName, shouldMountSystem ? Constants.SYSTEM_PARTITION
+							: null);
+			if (exitCode == 0) {
 				defaultResult.resultMessage = responder.getApplication()
 						.getString(R.string.file_restored, fileName);
+			} else if (exitCode == UnixCommands.MOUNT_FAILED) {
+				defaultResult.resultId = Constants.ERROR;
+				defaultResult.resultMessage = responder.getApplication()
+						.getString(R.string.system_no_mount);
 			} else {
 				defaultResult.resultId = Constants.ERROR;
 				defaultResult.resultMessage = responder.getApplication()
@@ -18,16 +18,24 @@
  */
 package ro.ciubex.propeditor.tasks;
 
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
 import ro.ciubex.propeditor.PropEditorApplication;
 import ro.ciubex.propeditor.R;
 import ro.ciubex.propeditor.models.Constants;
 import ro.ciubex.propeditor.properties.Entities;
+import ro.ciubex.propeditor.properties.EntitiesMerge;
 import ro.ciubex.propeditor.util.Utilities;
+import ro.ciubex.shell.UnixCommands;
 import android.app.Application;
 import android.os.AsyncTask;
 
@@ -59,6 +67,8 @@ public class SavePropertiesTask extends
 	private String fileName;
 	private File destinationFile;
 	private Entities properties;
+	private byte[] savedDigest;
+	private int mergeConflicts = -1;
 
 	public SavePropertiesTask(Responder responder, String fileName,
 			Entities properties) {
@@ -80,13 +90,39 @@ public class SavePropertiesTask extends
 		defaultResult.resultId = Constants.OK;
 		boolean isSystem = fileName.startsWith(Constants.SYSTEM_PARTITION);
 		boolean continueSave = true;
-		boolean shouldMountSystem = false;
 		if (destinationFile.getParentFile() == null) {
 			continueSave = false;
 			defaultResult.resultId = Constants.ERROR;
 			defaultResult.resultMessage = application
 					.getString(R.string.destination_folder_null);
 		}
+		if (continueSave && privateDir == null) {
+			continueSave = false;
+			defaultResult.resultId = Constants.ERROR;
+			defaultResult.resultMessage = application.getString(
+					R.string.backup_failed);
+		}
+		if (continueSave) {
+			continueSave = mergeChangedFile();
+		}
+		if (continueSave && properties.isUnchanged(fileName)
+				&& destinationFile.exists()) {
+			continueSave = false;
+			defaultResult.resultMessage = application.getString(
+					R.string.file_unchanged, fileName);
+			properties.setModified(false);
+		}
+		if (continueSave) {
+			continueSave = saveTheProperties();
+		}
+		if (continueSave && destinationFile.exists()
+				&& Arrays.equals(savedDigest,
+						properties.getSourceDigest(fileName))) {
+			continueSave = false;
+			defaultResult.resultMessage = application.getString(
+					R.string.file_unchanged, fileName);
+			properties.setModified(false);
+		}
 		if (continueSave) {
 			continueSave = application.getUnixShell().hasRootAccess();
 			if (!continueSave) {
@@ -96,36 +132,13 @@ public class SavePropertiesTask extends
 			}
 		}
 		if (continueSave) {
-			if (isSystem) {
-				shouldMountSystem = !application.getUnixShell()
-						.checkPartitionMountFlags(Constants.SYSTEM_PARTITION,
-				Constants.READ_WRITE);
-			}
-			if (shouldMountSystem) {
-				continueSave = application.getUnixShell().mountPartition(
-						Constants.SYSTEM_PARTITION, Constants.READ_WRITE);
-			}
-			if (!continueSave) {
-				defaultResult.resultId = Constants.ERROR;
-				defaultResult.resultMessage = application
-						.getString(R.string.system_no_mount);
-			}
+			replaceTheFile(isSystem && !application.getUnixShell()
+					.checkPartitionMountFlags(Constants.SYSTEM_PARTITION,
+							Constants.READ_WRITE));
 		}
-		if (continueSave) {
-			if (privateDir != null) {
-				saveTheProperties();
-			}
-			if (privateDir != null && backupOldFile()) {
-				moveNewFile();
-			} else {
-				defaultResult.resultId = Constants.ERROR;
-				defaultResult.resultMessage = application.getString(
-						R.string.backup_failed);
-			}
-			if (isSystem && shouldMountSystem) {
-				application.getUnixShell().mountPartition(
-						Constants.SYSTEM_PARTITION, Constants.READ_ONLY);
-			}
+		if (mergeConflicts > -1 && Constants.OK == defaultResult.resultId) {
+			defaultResult.resultMessage = application.getString(
+					R.string.file_merged, fileName, mergeConflicts);
 		}
 		return defaultResult;
 	}
@@ -150,15 +163,75 @@ public class SavePropertiesTask extends
 	}
 
 	/**
-	 * Save the Properties
+	 * If the file was changed since the properties were loaded, for example
+	 * by an update or by another application, merge the changes made on the
+	 * properties into the current file content, so the file changes are not
+	 * lost by saving. The keys changed on both sides keep the file values.
+	 * 
+	 * @return False if the current file could not be read.
 	 */
-	private void saveTheProperties() {
+	private boolean mergeChangedFile() {
+		Entities base = application.getLoadedEntities();
+		byte[] loadedDigest = properties.getSourceDigest(fileName);
+		if (base == null || loadedDigest == null || !destinationFile.exists()) {
+			return true;
+		}
+		Entities current = new Entities();
+		try {
+			if (destinationFile.canRead()) {
+				current.load(destinationFile, fileName);
+			} else {
+				byte[] content = application.getUnixShell().readFile(fileName);
+				if (content == null) {
+					throw new IOException("Unable to read " + fileName);
+				}
+				current.load(ByteBuffer.wrap(content), fileName);
+			}
+		} catch (IOException e) {
+			defaultResult.resultId = Constants.ERROR;
+			defaultResult.resultMessage = application.getString(
+					R.string.saving_exception, fileName, "IOException",
+					e.getMessage());
+			application.logE(TAG, defaultResult.resultMessage, e);
+			return false;
+		}
+		byte[] currentDigest = current.getSourceDigest(fileName);
+		if (currentDigest == null || Arrays.equals(loadedDigest, currentDigest)) {
+			return true;
+		}
+		EntitiesMerge merge = EntitiesMerge.merge(base, properties, current);
+		synchronized (properties) {
+			properties.clear();
+			properties.addAll(merge.getResult());
+			properties.setSourceDigest(fileName, currentDigest);
+		}
+		application.setLoadedEntities(current);
+		mergeConflicts = merge.getConflicts().size();
+		return true;
+	}
+
+	/**
+	 * Save the Properties on the application private folder. Only the changed
+	 * lines are written again, the other lines being copied from the loaded
+	 * content, kept in memory. The digest of the written content is computed while
+	 * writing, to be compared with the digest of the existing file.
+	 * 
+	 * @return True if the properties were saved.
+	 */
+	private boolean saveTheProperties() {
+		boolean saved = false;
 		File file = new File(privateDir + File.separator
 				+ destinationFile.getName());
-		BufferedWriter writer = null;
+		OutputStream outputStream = null;
 		try {
-			writer = new BufferedWriter(new FileWriter(file));
-			properties.store(writer);
+			MessageDigest messageDigest = MessageDigest
+					.getInstance(Entities.DIGEST_ALGORITHM);
+			outputStream = new BufferedOutputStream(new DigestOutputStream(
+					new FileOutputStream(file), messageDigest));
+			properties.storeChanges(outputStream);
+			outputStream.flush();
+			savedDigest = messageDigest.digest();
+			saved = true;
 			defaultResult.resultMessage = application.getString(
 					R.string.file_saved, fileName);
 		} catch (IOException e) {
@@ -167,71 +240,74 @@ public class SavePropertiesTask extends
 					R.string.saving_exception, fileName, "IOException",
 					e.getMessage());
 			application.logE(TAG, defaultResult.resultMessage, e);
+		} catch (NoSuchAlgorithmException e) {
+			defaultResult.resultId = Constants.ERROR;
+			defaultResult.resultMessage = application.getString(
+					R.string.saving_exception, fileName,
+					"NoSuchAlgorithmException", e.getMessage());
+			application.logE(TAG, defaultResult.resultMessage, e);
 		} finally {
-			if (writer != null) {
+			if (outputStream != null) {
 				try {
-					writer.close();
+					outputStream.close();
 				} catch (IOException e) {
 					/* ignored */
 				}
 			}
 		}
-		if (file.exists()) {
-			application.getUnixShell().runUnixCommand(
-					"chmod 644 " + file.getAbsoluteFile()
-			);
-		}
-	}
-
-	/**
-	 * Backup old file.
-	 */
-	private boolean backupOldFile() {
-		boolean result = true;
-		String bkFileName = backupOriginalFile();
-		if (bkFileName != null) {
-			result = application.getUnixShell().runUnixCommand(
-					"mv " + fileName + " " + bkFileName);
-		}
-		return result;
+		return saved;
 	}
 
 	/**
-	 * Move the file from the application private folder to the right place.
+	 * Replace the file with the saved file from the application private
+	 * folder, making a backup of the original file if there is no backup
+	 * yet. All the needed commands are run as a single script.
+	 * 
+	 * @param shouldMountSystem
+	 *            True if the system partition should be remounted
+	 *            read-write.
 	 */
-	private void moveNewFile() {
+	private void replaceTheFile(boolean shouldMountSystem) {
 		String prvFile = privateDir + File.separator
 				+ destinationFile.getName();
-		if (existDestinationFolder()) {
-			if (application.getUnixShell().runUnixCommand(
-					"cat " + prvFile + " > " + fileName)) {
+		addBackupVersion(destinationFile);
+		int exitCode = application.getUnixShell().replaceFile(prvFile,
+				fileName, backupOriginalFile(),
+				shouldMountSystem ? Constants.SYSTEM_PARTITION : null);
+		if (exitCode == 0) {
+			// a copy saved to another file does not change the source state
+			if (fileName.equals(properties.getSourceFile())) {
 				application.getEntities().setModified(false);
-			} else {
-				defaultResult.resultId = Constants.ERROR;
-				defaultResult.resultMessage = application.getString(
-						R.string.new_file_failed);
+				properties.setSourceDigest(fileName, savedDigest);
+				application.setLoadedEntities(properties);
 			}
+			addBackupVersion(new File(prvFile));
+		} else if (exitCode == UnixCommands.MOUNT_FAILED) {
+			defaultResult.resultId = Constants.ERROR;
+			defaultResult.resultMessage = application
+					.getString(R.string.system_no_mount);
 		} else {
 			defaultResult.resultId = Constants.ERROR;
 			defaultResult.resultMessage = application.getString(
-					R.string.destination_folder_not_exist, destinationFile
-							.getParentFile().getAbsolutePath());
+					R.string.new_file_failed);
 		}
 	}
 
 	/**
-	 * If destination folder does not exist it will be created.
+	 * Save a version of the file on the backup store. A failure is only
+	 * logged, the saving process is not stopped.
+	 * 
+	 * @param file
+	 *            The readable file with the content to be saved.
 	 */
-	private boolean existDestinationFolder() {
-		boolean exist = destinationFile.getParentFile().exists();
-		if (!exist) {
-			exist = application.getUnixShell()
-					.runUnixCommand(
-							"mkdir -p "
-									+ destinationFile.getParentFile()
-											.getAbsolutePath());
-		}
-		return exist;
+	private void addBackupVersion(File file) {
+		if (file.canRead()) {
+			try {
+				application.getBackupStore().add(fileName, file);
+			} catch (IOException e) {
+				application.logE(TAG, "Unable to backup " + fileName, e);
+			}
+		}
 	}
 
 	/**
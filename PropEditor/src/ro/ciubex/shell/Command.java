@@ -18,21 +18,88 @@
  */
 package ro.ciubex.shell;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * This is a regular shell command. Inspired from RootCommands - Library to
  * access root commands with Java API link:
  * https://github.com/dschuermann/root-commands
  * 
+ * The command is also the future of its exit code, resolved when the shell
+ * reports that the command was finished, so more commands can be submitted
+ * before waiting any of them.
+ * 
+ * The command output, including the errors, is kept on a bounded buffer or
+ * is streamed as it arrives to an output stream set before the command is
+ * added to the shell. The output stream is closed when the command is
+ * finished.
+ * 
+ * Every command has a deadline, measured from the moment when the shell starts
+ * to run it, after the previous commands were finished, so a command waiting
+ * behind a long one is not timed out. A command not finished until its
+ * deadline is stopped with the {@link Status#TIMEOUT} status, the shell being
+ * recovered by killing the root process.
+ * 
  * @author Claudiu Ciobotariu
  * 
  */
-public class Command {
+public class Command implements Future<Integer> {
+	/**
+	 * The command status.
+	 */
+	public enum Status {
+		/**
+		 * The command is not finished yet.
+		 */
+		PENDING,
+		/**
+		 * The command was run and has an exit code.
+		 */
+		FINISHED,
+		/**
+		 * The command was not finished until its deadline.
+		 */
+		TIMEOUT,
+		/**
+		 * The command was cancelled.
+		 */
+		CANCELLED,
+		/**
+		 * The root process ended or was killed before running the command.
+		 */
+		ABORTED
+	}
+
+	/**
+	 * The default maximum number of output bytes kept by a command.
+	 */
+	public static final int DEFAULT_OUTPUT_LIMIT = 16 * 1024;
+
+	/**
+	 * The default command timeout in milliseconds.
+	 */
+	public static final long DEFAULT_TIMEOUT = 10000;
 	private String[] command;
 	private int exitCode;
 	private boolean finished;
+	private Status status = Status.PENDING;
+	private long timeout = DEFAULT_TIMEOUT;
+	private long startTime;
+	private boolean started;
+	private RootShell shell;
+	private OutputStream output;
+	private ByteArrayOutputStream buffer;
+	private int outputLimit = DEFAULT_OUTPUT_LIMIT;
+	private boolean outputTruncated;
+	private IOException outputException;
 
 	/**
 	 * Build a command or a set of commands
@@ -55,7 +122,6 @@ public class Command {
 			sb.append(command[i] + " 2>&1");
 			sb.append('\n');
 		}
-		System.out.println(sb.toString());
 		return sb.toString();
 	}
 
@@ -70,6 +136,145 @@ public class Command {
 		out.write(getCommand().getBytes());
 	}
 
+	/**
+	 * Set the time given to this command to be finished, set before the
+	 * command is added to the shell.
+	 * 
+	 * @param timeout
+	 *            The timeout in milliseconds, zero to wait without a deadline.
+	 * @return This command.
+	 */
+	public Command setTimeout(long timeout) {
+		this.timeout = timeout;
+		return this;
+	}
+
+	/**
+	 * The command was added to a shell.
+	 * 
+	 * @param shell
+	 *            The shell running the command.
+	 */
+	void submitted(RootShell shell) {
+		synchronized (this) {
+			this.shell = shell;
+		}
+	}
+
+	/**
+	 * The shell started to run the command, its deadline starts now.
+	 */
+	void started() {
+		synchronized (this) {
+			startTime = System.nanoTime();
+			started = true;
+			this.notifyAll();
+		}
+	}
+
+	/**
+	 * Stream the command output to an output stream instead of keeping it,
+	 * for example to parse a big output while is read. The stream is written
+	 * from the shell reading thread, so it should not block for long, and is
+	 * closed when the command is finished.
+	 * 
+	 * @param output
+	 *            The stream receiving the output raw bytes.
+	 * @return This command.
+	 */
+	public Command setOutput(OutputStream output) {
+		this.output = output;
+		return this;
+	}
+
+	/**
+	 * Set the maximum number of output bytes kept by this command, when no
+	 * output stream is set.
+	 * 
+	 * @param outputLimit
+	 *            The maximum number of bytes, zero to ignore the output.
+	 * @return This command.
+	 */
+	public Command setOutputLimit(int outputLimit) {
+		this.outputLimit = outputLimit;
+		return this;
+	}
+
+	/**
+	 * Receive a part of the command output from the shell.
+	 * 
+	 * @param data
+	 *            The output data.
+	 * @param offset
+	 *            The start offset in the data.
+	 * @param length
+	 *            The number of bytes.
+	 */
+	void writeOutput(byte[] data, int offset, int length) {
+		if (output != null) {
+			if (outputException == null) {
+				try {
+					output.write(data, offset, length);
+				} catch (IOException e) {
+					// the consumer stopped, the rest of the output is ignored
+					outputException = e;
+				}
+			}
+		} else {
+			synchronized (this) {
+				if (buffer == null) {
+					buffer = new ByteArrayOutputStream(Math.min(outputLimit, 256));
+				}
+				int count = Math.min(length, outputLimit - buffer.size());
+				if (count > 0) {
+					buffer.write(data, offset, count);
+				}
+				if (count < length) {
+					outputTruncated = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Obtain the kept output of the command.
+	 * 
+	 * @return The output text, empty if there is no output or the output was
+	 *         streamed.
+	 */
+	public String getOutput() {
+		synchronized (this) {
+			if (buffer == null) {
+				return "";
+			}
+			try {
+				return buffer.toString("UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				return buffer.toString();
+			}
+		}
+	}
+
+	/**
+	 * Check if the output was longer than the kept output.
+	 * 
+	 * @return True if some output was not kept.
+	 */
+	public boolean isOutputTruncated() {
+		synchronized (this) {
+			return outputTruncated;
+		}
+	}
+
+	/**
+	 * Obtain the exception thrown by the output stream, if any.
+	 * 
+	 * @return The exception or null if the output was successfully streamed.
+	 */
+	public IOException getOutputException() {
+		return outputException;
+	}
+
 	/**
 	 * Set an exit code to the command.
 	 * 
@@ -77,35 +282,230 @@ public class Command {
 	 *            Exit code to be set.
 	 */
 	public void setExitCode(int code) {
+		finish(Status.FINISHED, code);
+	}
+
+	/**
+	 * Mark the command as finished, if it is not already finished.
+	 * 
+	 * @param status
+	 *            The final status.
+	 * @param code
+	 *            The exit code, used only for the finished status.
+	 * @return True if the command was not already finished.
+	 */
+	boolean finish(Status status, int code) {
 		synchronized (this) {
-			exitCode = code;
+			if (finished) {
+				return false;
+			}
+			this.status = status;
+			exitCode = status == Status.FINISHED ? code : -1;
 			finished = true;
 			this.notifyAll();
 		}
+		closeOutput();
+		return true;
+	}
+
+	/**
+	 * Close the output stream, signaling the end of the output.
+	 */
+	private void closeOutput() {
+		if (output != null) {
+			try {
+				output.close();
+			} catch (IOException e) {
+				if (outputException == null) {
+					outputException = e;
+				}
+			}
+		}
 	}
 
 	/**
-	 * Wait to be finished the command.
+	 * Wait to be finished the command, at most until its deadline. If the
+	 * deadline is passed, the command is stopped with the
+	 * {@link Status#TIMEOUT} status. If the waiting thread is interrupted,
+	 * the command is not stopped and the thread keeps its interrupted
+	 * status.
 	 * 
 	 * @return True if the command was finished successfully.
 	 */
 	public boolean waitForFinish() {
-		boolean result = true;
+		try {
+			if (!waitUntilDeadline()) {
+				stop(Status.TIMEOUT, true);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		synchronized (this) {
+			return status == Status.FINISHED && exitCode == 0;
+		}
+	}
+
+	/**
+	 * Wait the command until its deadline. While the command waits behind
+	 * other commands it has no deadline yet.
+	 * 
+	 * @return True if the command was finished.
+	 * @throws InterruptedException
+	 *             If the current thread was interrupted while waiting.
+	 */
+	private boolean waitUntilDeadline() throws InterruptedException {
 		synchronized (this) {
+			if (shell == null) {
+				// never added to a shell, nothing to wait
+				return finished;
+			}
+			long remaining;
 			while (!finished) {
-				try {
-					this.wait(10000);
-				} catch (InterruptedException e) {
-				}
-				if (!finished) {
-					finished = true;
-					result = false;
+				if (timeout <= 0 || !started) {
+					this.wait();
 				} else {
-					result = (exitCode == 0);
+					remaining = startTime
+							+ TimeUnit.MILLISECONDS.toNanos(timeout)
+							- System.nanoTime();
+					if (remaining <= 0) {
+						return false;
+					}
+					TimeUnit.NANOSECONDS.timedWait(this, remaining);
 				}
 			}
+			return true;
+		}
+	}
+
+	/**
+	 * Stop the command, through the shell if it was added to a shell.
+	 */
+	private boolean stop(Status status, boolean mayKill) {
+		RootShell rootShell;
+		synchronized (this) {
+			rootShell = shell;
+		}
+		if (rootShell == null) {
+			return finish(status == Status.TIMEOUT ? Status.ABORTED : status, -1);
+		}
+		return rootShell.stop(this, status, mayKill);
+	}
+
+	/**
+	 * Wait the command to be finished and obtain its exit code.
+	 * 
+	 * @return The command exit code.
+	 * @throws InterruptedException
+	 *             If the current thread was interrupted while waiting.
+	 * @throws ExecutionException
+	 *             If the command was timed out or aborted.
+	 * @throws CancellationException
+	 *             If the command was cancelled.
+	 */
+	@Override
+	public Integer get() throws InterruptedException, ExecutionException {
+		synchronized (this) {
+			while (!finished) {
+				this.wait();
+			}
+			return getResult();
 		}
-		return result;
+	}
+
+	/**
+	 * Wait at most the given time for the command to be finished and obtain
+	 * its exit code. The command is not stopped if the time is passed.
+	 * 
+	 * @param timeout
+	 *            The maximum time to wait.
+	 * @param unit
+	 *            The time unit of the timeout argument.
+	 * @return The command exit code.
+	 * @throws InterruptedException
+	 *             If the current thread was interrupted while waiting.
+	 * @throws ExecutionException
+	 *             If the command was timed out or aborted.
+	 * @throws TimeoutException
+	 *             If the command was not finished in the given time.
+	 */
+	@Override
+	public Integer get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		synchronized (this) {
+			long remaining;
+			while (!finished) {
+				remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					throw new TimeoutException();
+				}
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+			return getResult();
+		}
+	}
+
+	/**
+	 * Obtain the result of a finished command.
+	 */
+	private Integer getResult() throws ExecutionException {
+		switch (status) {
+		case CANCELLED:
+			throw new CancellationException();
+		case TIMEOUT:
+			throw new ExecutionException(new TimeoutException(
+					"The command was timed out"));
+		case ABORTED:
+			throw new ExecutionException(new IOException(
+					"The root shell ended before the command"));
+		default:
+			return exitCode;
+		}
+	}
+
+	@Override
+	public boolean isDone() {
+		synchronized (this) {
+			return finished;
+		}
+	}
+
+	/**
+	 * Cancel the command. A command already sent to the shell is stopped only
+	 * if it may be interrupted, by killing the root process.
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return stop(Status.CANCELLED, mayInterruptIfRunning);
+	}
+
+	@Override
+	public boolean isCancelled() {
+		synchronized (this) {
+			return status == Status.CANCELLED;
+		}
+	}
+
+	/**
+	 * Get the command status.
+	 * 
+	 * @return The command status.
+	 */
+	public Status getStatus() {
+		synchronized (this) {
+			return status;
+		}
+	}
+
+	/**
+	 * Check if the command was stopped because it was not finished until its
+	 * deadline.
+	 * 
+	 * @return True if the command was timed out.
+	 */
+	public boolean isTimedOut() {
+		return getStatus() == Status.TIMEOUT;
 	}
 
 	/**
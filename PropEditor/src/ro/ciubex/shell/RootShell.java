@@ -18,13 +18,15 @@
  */
 package ro.ciubex.shell;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
 import java.io.Closeable;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -32,6 +34,11 @@ import java.util.List;
  * root commands with Java API link:
  * https://github.com/dschuermann/root-commands
  * 
+ * The commands are run by a session, a SU process with its own commands list.
+ * When a running command is timed out or cancelled, the session is killed
+ * and a new session is started for the commands not started yet, so the
+ * commands of a stuck process can not be mixed with the new ones.
+ * 
  * @author Claudiu Ciobotariu
  * 
  */
@@ -39,21 +46,51 @@ public class RootShell implements Closeable {
 	boolean rootAccess;
 	boolean closing;
 	private String mSuPath;
-	private Process rootProcess;
-	private BufferedReader consoleOut;
-	private DataOutputStream consoleIn;
-	private List<Command> commands;
-	private static final String token = "F*D^W@#FGF";
+	private Session session;
+
+	/**
+	 * The frame marker starts with the ASCII record separator, not used on
+	 * the text output, followed by a random text chosen for every shell, so
+	 * the output of a command can not be taken as a frame.
+	 */
+	private static final byte FRAME_START = 0x1E;
+	private static final int STATE_OUTPUT = 0;
+	private static final int STATE_INDEX = 1;
+	private static final int STATE_CODE = 2;
+
+	/**
+	 * The time given to the SU process to start, including the time needed
+	 * to the user to grant the root access.
+	 */
+	private static final long START_TIMEOUT = 30000;
+	private String frameMarkerText;
+	private byte[] frameMarker;
 
 	/**
 	 * The class constructor used to initialize the root shell.
 	 */
 	public RootShell(String suPath) {
-		commands = new ArrayList<>();
+		initFrameMarker();
 		scanForSU();
 		initializeRootProcess();
 	}
 
+	/**
+	 * Choose the random frame marker of this shell.
+	 */
+	private void initFrameMarker() {
+		byte[] random = new byte[8];
+		new SecureRandom().nextBytes(random);
+		StringBuilder sb = new StringBuilder();
+		sb.append((char) FRAME_START);
+		for (byte b : random) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+			sb.append(Character.forDigit(b & 0xF, 16));
+		}
+		frameMarkerText = sb.toString();
+		frameMarker = frameMarkerText.getBytes();
+	}
+
 	/**
 	 * Check if the shell have root access;
 	 * 
@@ -98,88 +135,27 @@ public class RootShell implements Closeable {
 	 */
 	private void initializeRootProcess() {
 		if (rootAccess) {
-			try {
-				startRootProcess();
-			} catch (IOException e) {
-				rootAccess = false;
-			}
+			session = startRootProcess();
 		}
 	}
 
 	/**
 	 * Method used to start the root process.
 	 * 
-	 * @throws IOException
+	 * @return The started session or null if the root access is not
+	 *         available.
 	 */
-	private void startRootProcess() throws IOException {
-		String line;
-		boolean isOk = false;
+	private Session startRootProcess() {
+		Session newSession = new Session();
 		try {
-			rootProcess = Runtime.getRuntime().exec(mSuPath);
-		} catch (IOException e) {
-			rootAccess = false;
-		}
-		if (rootAccess) {
-			consoleOut = new BufferedReader(new InputStreamReader(
-					rootProcess.getInputStream()));
-			consoleIn = new DataOutputStream(rootProcess.getOutputStream());
-
-			consoleIn.write("echo test_root\n".getBytes());
-			consoleIn.flush();
-
-			while (true) {
-				line = consoleOut.readLine();
-				if (line == null) {
-					rootAccess = false;
-					break;
-				}
-				if ("".equals(line)) {
-					continue;
-				}
-				if ("test_root".equals(line)) {
-					isOk = true;
-					break;
-				}
-				destroyRootProcess();
-			}
-		}
-		if (isOk) {
-			new Thread(inputRunnable, "Shell Input").start();
-			new Thread(outputRunnable, "Shell Output").start();
-		}
-	}
-
-	private Runnable inputRunnable = new Runnable() {
-		public void run() {
-			try {
-				writeCommands();
-			} catch (IOException e) {
-			} catch (InterruptedException e) {
-			}
-		}
-	};
-
-	private Runnable outputRunnable = new Runnable() {
-		public void run() {
-			try {
-				readOutput();
-			} catch (IOException e) {
-			} catch (InterruptedException e) {
+			if (newSession.start()) {
+				return newSession;
 			}
+		} catch (IOException e) {
 		}
-	};
-
-	/**
-	 * Method used to stop the root process.
-	 */
-	private void destroyRootProcess() {
-		doClose(consoleIn);
-		doClose(consoleOut);
-		try {
-			rootProcess.exitValue();
-		} catch (IllegalThreadStateException e) {
-			rootProcess.destroy();
-		}
+		newSession.destroy();
+		rootAccess = false;
+		return null;
 	}
 
 	/**
@@ -198,106 +174,135 @@ public class RootShell implements Closeable {
 	}
 
 	/**
-	 * Method used to write a command to the root process console.
+	 * Add a command to the command list.
 	 * 
-	 * @throws IOException
-	 * @throws InterruptedException
+	 * @param command
+	 *            Command string to be added.
+	 * @return The command object for provided string command.
 	 */
-	private void writeCommands() throws IOException, InterruptedException {
-		int commandIndex = 0;
-		Command command;
-		String line;
-		while (true) {
-			synchronized (commands) {
-				while (!closing && commandIndex >= commands.size()) {
-					commands.wait();
-				}
-			}
-			if (commandIndex < commands.size()) {
-				command = commands.get(commandIndex);
-				line = "\necho " + token + " " + commandIndex + " $?\n";
-				command.writeCommand(consoleIn);
-				consoleIn.write(line.getBytes());
-				consoleIn.flush();
-				commandIndex++;
-			} else if (closing) {
-				consoleIn.write("\nexit 0\n".getBytes());
-				consoleIn.flush();
-				consoleIn.close();
-				break;
-			}
-		}
+	public Command addCommand(String command) {
+		Command cmd = new Command(command);
+		return addCommand(cmd);
 	}
 
 	/**
-	 * Method used to read the command response from the root process console.
+	 * Add a command to the command list.
 	 * 
-	 * @throws IOException
-	 * @throws InterruptedException
+	 * @param command
+	 *            Command to be added.
+	 * @return The command object for provided command.
 	 */
-	private void readOutput() throws IOException, InterruptedException {
-		int commandIndex = 0;
-		Command command = null;
-		String line, fields[];
-		int pos, id;
-		while (true) {
-			line = consoleOut.readLine();
-			if (line == null) {
-				break;
-			}
-			if (command == null) {
-				if (commandIndex >= commands.size()) {
-					if (closing)
-						break;
-					continue;
-				}
-				command = commands.get(commandIndex);
-			}
-			System.out.println(line);
-			pos = line.indexOf(token);
-			if (pos >= 0) {
-				line = line.substring(pos);
-				fields = line.split(" ");
-				id = Integer.parseInt(fields[1]);
-				if (id == commandIndex) {
-					command.setExitCode(Integer.parseInt(fields[2]));
-					commandIndex++;
-					command = null;
-					continue;
+	public Command addCommand(Command command) {
+		addCommands(command);
+		return command;
+	}
+
+	/**
+	 * Add more commands to the command list at once. The commands are written
+	 * to the shell one after another, without waiting for the previous ones
+	 * to be finished, and each command is resolved as its output is read.
+	 * 
+	 * @param commands
+	 *            The commands to be added.
+	 * @return The added commands, to be waited as futures.
+	 */
+	public List<Command> addCommands(Command... commands) {
+		List<Command> list = Arrays.asList(commands);
+		synchronized (this) {
+			if (rootAccess && !closing && session == null) {
+				// the previous process ended, start a new one
+				session = startRootProcess();
+			}
+			if (rootAccess && !closing) {
+				for (Command command : list) {
+					command.submitted(this);
 				}
+				session.add(list);
 			}
 		}
-		rootProcess.waitFor();
-		destroyRootProcess();
+		return list;
 	}
 
 	/**
-	 * Add a command to the command list.
+	 * Stop a command before it is finished. A command not sent to the shell
+	 * is only marked as finished. The running command is stopped by killing
+	 * the root process, the commands not started yet being sent to a new root
+	 * process. A command already sent but waiting behind the running one can
+	 * not be stopped without aborting the running one, so it is left to run.
 	 * 
 	 * @param command
-	 *            Command string to be added.
-	 * @return The command object for provided string command.
+	 *            The command to be stopped.
+	 * @param status
+	 *            The status of the stopped command, timeout or cancelled.
+	 * @param mayKill
+	 *            True if the root process could be killed to stop the
+	 *            command.
+	 * @return True if the command was stopped, false if the command was
+	 *         already finished or could not be stopped.
 	 */
-	public Command addCommand(String command) {
-		Command cmd = new Command(command);
-		return addCommand(cmd);
+	synchronized boolean stop(Command command, Command.Status status,
+			boolean mayKill) {
+		Session current = session;
+		int index = current != null ? current.indexOf(command) : -1;
+		if (index < 0) {
+			return command.finish(status, -1);
+		}
+		List<Command> pending;
+		synchronized (current.commands) {
+			if (command.isDone()) {
+				return false;
+			}
+			if (index >= current.writeIndex) {
+				// the writer will send only the frame of this command
+				return command.finish(status, -1);
+			}
+			if (!mayKill || index != current.parseCommandIndex) {
+				return false;
+			}
+			current.ended = true;
+			command.finish(status, -1);
+			pending = new ArrayList<Command>();
+			for (int i = index + 1; i < current.commands.size(); i++) {
+				Command cmd = current.commands.get(i);
+				if (!cmd.isDone()) {
+					pending.add(cmd);
+				}
+			}
+		}
+		current.destroy();
+		session = null;
+		if (!closing && !pending.isEmpty()) {
+			session = startRootProcess();
+			if (session != null) {
+				session.add(pending);
+			} else {
+				for (Command cmd : pending) {
+					cmd.finish(Command.Status.ABORTED, -1);
+				}
+			}
+		}
+		return true;
 	}
 
 	/**
-	 * Add a command to the command list.
-	 * 
-	 * @param command
-	 *            Command to be added.
-	 * @return The command object for provided command.
+	 * A session process ended by itself, its unfinished commands are
+	 * aborted.
 	 */
-	public Command addCommand(Command command) {
-		if (rootAccess && !closing) {
-			synchronized (commands) {
-				commands.add(command);
-				commands.notifyAll();
+	private synchronized void sessionEnded(Session ended) {
+		if (session == ended) {
+			session = null;
+		}
+		synchronized (ended.commands) {
+			// wake up the writer, to see that the session was ended
+			ended.commands.notifyAll();
+			if (ended.ended) {
+				return;
+			}
+			ended.ended = true;
+			for (Command cmd : ended.commands) {
+				cmd.finish(Command.Status.ABORTED, -1);
 			}
 		}
-		return command;
 	}
 
 	/**
@@ -305,15 +310,21 @@ public class RootShell implements Closeable {
 	 */
 	@Override
 	public void close() throws IOException {
-		synchronized (commands) {
+		Session current;
+		synchronized (this) {
 			closing = true;
-			commands.notifyAll();
+			current = session;
+		}
+		if (current != null) {
+			synchronized (current.commands) {
+				current.commands.notifyAll();
+			}
 		}
 	}
 
 	/**
 	 * Get the SU path or empty string.
-	 *
+	 * 
 	 * @return The SU path or empty string.
 	 */
 	public String getSuPath() {
@@ -322,4 +333,387 @@ public class RootShell implements Closeable {
 		}
 		return "";
 	}
+
+	/**
+	 * A root process with the commands sent to it. The commands list is used
+	 * as lock for the session state.
+	 */
+	private class Session {
+		private Process rootProcess;
+		private InputStream consoleOut;
+		private DataOutputStream consoleIn;
+		private List<Command> commands = new ArrayList<Command>();
+		private int writeIndex;
+		private boolean ended;
+		private int parseState = STATE_OUTPUT;
+		private int parseMatched;
+		private byte[] parseHeader = new byte[24];
+		private int parseHeaderLength;
+		private int parseIndex;
+		private int parseCode;
+		private int parseCommandIndex;
+		private boolean started;
+
+		/**
+		 * Start the root process and check that the commands are run. If the
+		 * process does not answer in time, for example the SU prompt was not
+		 * answered, the process is killed.
+		 * 
+		 * @return True if the process was started.
+		 * @throws IOException
+		 */
+		boolean start() throws IOException {
+			rootProcess = Runtime.getRuntime().exec(mSuPath);
+			consoleOut = new BufferedInputStream(rootProcess.getInputStream());
+			consoleIn = new DataOutputStream(rootProcess.getOutputStream());
+			new Thread(startWatchdog, "Shell Watchdog").start();
+
+			consoleIn.write("echo test_root\n".getBytes());
+			consoleIn.flush();
+
+			String line;
+			while ((line = readTextLine()) != null) {
+				if ("test_root".equals(line)) {
+					synchronized (this) {
+						started = true;
+						this.notifyAll();
+					}
+					new Thread(inputRunnable, "Shell Input").start();
+					new Thread(outputRunnable, "Shell Output").start();
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private Runnable startWatchdog = new Runnable() {
+			public void run() {
+				long deadline = System.currentTimeMillis() + START_TIMEOUT;
+				long remaining;
+				synchronized (Session.this) {
+					while (!started
+							&& (remaining = deadline - System.currentTimeMillis()) > 0) {
+						try {
+							Session.this.wait(remaining);
+						} catch (InterruptedException e) {
+							break;
+						}
+					}
+					if (started) {
+						return;
+					}
+				}
+				destroy();
+			}
+		};
+
+		private Runnable inputRunnable = new Runnable() {
+			public void run() {
+				try {
+					writeCommands();
+				} catch (IOException e) {
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+
+		private Runnable outputRunnable = new Runnable() {
+			public void run() {
+				try {
+					readOutput();
+				} catch (IOException e) {
+				} catch (InterruptedException e) {
+				}
+				sessionEnded(Session.this);
+			}
+		};
+
+		/**
+		 * Method used to stop the root process.
+		 */
+		void destroy() {
+			doClose(consoleIn);
+			doClose(consoleOut);
+			if (rootProcess != null) {
+				try {
+					rootProcess.exitValue();
+				} catch (IllegalThreadStateException e) {
+					rootProcess.destroy();
+				}
+			}
+			synchronized (commands) {
+				commands.notifyAll();
+			}
+		}
+
+		void add(List<Command> list) {
+			synchronized (commands) {
+				commands.addAll(list);
+				commands.notifyAll();
+			}
+		}
+
+		int indexOf(Command command) {
+			synchronized (commands) {
+				for (int i = 0; i < commands.size(); i++) {
+					if (commands.get(i) == command) {
+						return i;
+					}
+				}
+				return -1;
+			}
+		}
+
+		/**
+		 * Method used to write a command to the root process console. A
+		 * command stopped before being sent is replaced by its frame only, so
+		 * the indexes are kept.
+		 * 
+		 * @throws IOException
+		 * @throws InterruptedException
+		 */
+		private void writeCommands() throws IOException, InterruptedException {
+			int commandIndex;
+			Command command;
+			String line;
+			boolean flush;
+			while (true) {
+				synchronized (commands) {
+					while (!closing && !ended && writeIndex >= commands.size()) {
+						commands.wait();
+					}
+					if (ended) {
+						break;
+					}
+					commandIndex = writeIndex;
+					command = commandIndex < commands.size() ? commands
+							.get(commandIndex) : null;
+					if (command != null) {
+						writeIndex++;
+						if (commandIndex == parseCommandIndex) {
+							// the shell is idle, the command runs now
+							startParsedCommand();
+						}
+					}
+					// the submitted batch is written entirely before flushing
+					flush = writeIndex >= commands.size();
+				}
+				if (command != null) {
+					line = "\necho '" + frameMarkerText + "' " + commandIndex
+							+ " $?\n";
+					if (!command.isDone()) {
+						command.writeCommand(consoleIn);
+					}
+					consoleIn.write(line.getBytes());
+					if (flush) {
+						consoleIn.flush();
+					}
+				} else if (closing) {
+					consoleIn.write("\nexit 0\n".getBytes());
+					consoleIn.flush();
+					consoleIn.close();
+					break;
+				}
+			}
+		}
+
+		/**
+		 * Method used to read the command response from the root process
+		 * console. The console output is read in blocks and parsed by
+		 * {@link #parseOutput(byte[], int)}.
+		 * 
+		 * @throws IOException
+		 * @throws InterruptedException
+		 */
+		private void readOutput() throws IOException, InterruptedException {
+			byte[] data = new byte[65536];
+			int length;
+			while ((length = consoleOut.read(data)) > -1) {
+				parseOutput(data, length);
+			}
+			rootProcess.waitFor();
+			destroy();
+		}
+
+		/**
+		 * Parse a block of the console output. The output of every command is
+		 * followed by a frame written by the shell: the frame marker, a space,
+		 * the command index, a space, the exit code and a new line. The bytes
+		 * between frames are given to the current command in runs, without
+		 * splitting them in lines, and only the frame start byte is searched
+		 * inside them. A frame could be split between blocks, the parsing
+		 * state being kept between calls.
+		 * 
+		 * @param data
+		 *            The output block.
+		 * @param length
+		 *            The number of bytes read in the block.
+		 */
+		private void parseOutput(byte[] data, int length) {
+			int start = 0, i = 0;
+			byte b;
+			while (i < length) {
+				if (parseState == STATE_OUTPUT && parseMatched == 0) {
+					while (i < length && data[i] != FRAME_START) {
+						i++;
+					}
+					if (i == length) {
+						break;
+					}
+				}
+				b = data[i];
+				switch (parseState) {
+				case STATE_OUTPUT:
+					if (b == frameMarker[parseMatched]) {
+						if (parseMatched == 0) {
+							writeOutput(data, start, i - start);
+						}
+						start = i + 1;
+						if (++parseMatched == frameMarker.length) {
+							parseState = STATE_INDEX;
+							parseHeaderLength = 0;
+							parseIndex = 0;
+							parseCode = 0;
+						}
+						i++;
+					} else {
+						// not a frame, the matched bytes were output
+						writeOutput(frameMarker, 0, parseMatched);
+						parseMatched = 0;
+						start = i;
+					}
+					break;
+				case STATE_INDEX:
+				case STATE_CODE:
+					if (!parseHeader(b)) {
+						// not a frame, the parsed bytes were output
+						writeOutput(frameMarker, 0, frameMarker.length);
+						writeOutput(parseHeader, 0, parseHeaderLength);
+						parseState = STATE_OUTPUT;
+						parseMatched = 0;
+						start = i;
+					} else {
+						i++;
+						start = i;
+					}
+					break;
+				}
+			}
+			if (parseState == STATE_OUTPUT && start < length) {
+				writeOutput(data, start, length - start);
+			}
+		}
+
+		/**
+		 * Parse a byte of the frame header, after the frame marker.
+		 * 
+		 * @param b
+		 *            The parsed byte.
+		 * @return False if the byte is not expected, so the frame is not
+		 *         valid.
+		 */
+		private boolean parseHeader(byte b) {
+			boolean valid = false;
+			if (parseHeaderLength == parseHeader.length) {
+				valid = false;
+			} else if (parseHeaderLength == 0) {
+				valid = b == ' ';
+			} else if (b >= '0' && b <= '9') {
+				if (parseState == STATE_INDEX) {
+					parseIndex = parseIndex * 10 + (b - '0');
+				} else {
+					parseCode = parseCode * 10 + (b - '0');
+				}
+				valid = true;
+			} else if (parseHeader[parseHeaderLength - 1] != ' ') {
+				if (b == ' ' && parseState == STATE_INDEX) {
+					parseState = STATE_CODE;
+					valid = true;
+				} else if (b == '\n' && parseState == STATE_CODE) {
+					endFrame(parseIndex, parseCode);
+					parseState = STATE_OUTPUT;
+					parseMatched = 0;
+					valid = true;
+				}
+			}
+			if (valid) {
+				parseHeader[parseHeaderLength++] = b;
+			}
+			return valid;
+		}
+
+		/**
+		 * Give a run of output bytes to the current command, the output not
+		 * belonging to any command being ignored.
+		 */
+		private void writeOutput(byte[] data, int offset, int length) {
+			if (length > 0) {
+				Command command = getParsedCommand();
+				if (command != null) {
+					command.writeOutput(data, offset, length);
+				}
+			}
+		}
+
+		/**
+		 * A frame was parsed, the current command is finished.
+		 * 
+		 * @param index
+		 *            The command index from the frame.
+		 * @param exitCode
+		 *            The command exit code.
+		 */
+		private void endFrame(int index, int exitCode) {
+			Command command = getParsedCommand();
+			if (command != null && index == parseCommandIndex) {
+				command.finish(Command.Status.FINISHED, exitCode);
+				synchronized (commands) {
+					parseCommandIndex++;
+					startParsedCommand();
+				}
+			}
+		}
+
+		/**
+		 * Start the deadline of the command which output is parsed, if it was
+		 * sent to the shell, because the shell runs it now. Called with the
+		 * commands lock held.
+		 */
+		private void startParsedCommand() {
+			if (!ended && parseCommandIndex < writeIndex) {
+				commands.get(parseCommandIndex).started();
+			}
+		}
+
+		/**
+		 * Obtain the command which output is parsed.
+		 * 
+		 * @return The command or null if there is no command sent or the
+		 *         session was ended.
+		 */
+		private Command getParsedCommand() {
+			synchronized (commands) {
+				return !ended && parseCommandIndex < commands.size() ? commands
+						.get(parseCommandIndex) : null;
+			}
+		}
+
+		/**
+		 * Read a line of the console output as text, without the line end.
+		 * 
+		 * @return The line or null if the console was closed.
+		 * @throws IOException
+		 */
+		private String readTextLine() throws IOException {
+			StringBuilder sb = new StringBuilder();
+			int c;
+			while ((c = consoleOut.read()) > -1 && c != '\n') {
+				sb.append((char) c);
+			}
+			if (c < 0 && sb.length() == 0) {
+				return null;
+			}
+			return sb.toString().trim();
+		}
+	}
 }
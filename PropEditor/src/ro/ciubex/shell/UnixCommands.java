@@ -18,6 +18,8 @@
  */
 package ro.ciubex.shell;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
@@ -32,6 +34,23 @@ import java.util.List;
  * 
  */
 public class UnixCommands {
+	/**
+	 * The exit code of {@link #replaceFile(String, String, String, String)}
+	 * and {@link #moveFile(String, String, String)} when the partition could
+	 * not be mounted read-write.
+	 */
+	public static final int MOUNT_FAILED = 90;
+
+	/**
+	 * The shell variable keeping the last successfully step of a batch.
+	 */
+	private static final String STEP_VARIABLE = "PROPEDITOR_STEP";
+
+	/**
+	 * The time given to a file replacing, which waits the file system sync.
+	 */
+	private static final long REPLACE_FILE_TIMEOUT = 60000;
+
 	private List<Partition> partitions;
 	private RootShell rootShell;
 
@@ -100,6 +119,66 @@ public class UnixCommands {
 		return rootShell.addCommand(command).waitForFinish();
 	}
 
+	/**
+	 * Read a file with super user privileges, the file content being
+	 * received directly from the shell output, without copying the file.
+	 * 
+	 * @param fileName
+	 *            The full path of the file.
+	 * @return The file content or null if the file could not be read.
+	 */
+	public byte[] readFile(String fileName) {
+		if (!rootShell.hasRootAccess()) {
+			return null;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+		Command cmd = new Command("cat " + quote(fileName)).setOutput(out);
+		if (rootShell.addCommand(cmd).waitForFinish()
+				&& cmd.getOutputException() == null) {
+			return out.toByteArray();
+		}
+		return null;
+	}
+
+	/**
+	 * Run more Unix commands with super user privileges, submitted all at
+	 * once, so the commands are sent to the shell without waiting for each
+	 * other. The batch stops at the first failure: every command records its
+	 * step on a shell variable when it is successfully, and the next command
+	 * is run only if the previous step was recorded.
+	 * 
+	 * @param commands
+	 *            The UNIX commands to be run.
+	 * @return The submitted commands, to be waited as futures.
+	 */
+	public List<Command> submitUnixCommands(String... commands) {
+		Command[] cmds = new Command[commands.length];
+		String guard;
+		for (int i = 0; i < commands.length; i++) {
+			guard = i == 0 ? STEP_VARIABLE + "=0" : "[ \"$" + STEP_VARIABLE
+					+ "\" = " + i + " ]";
+			cmds[i] = new Command(guard + " && { " + commands[i] + "; } 2>&1 && "
+					+ STEP_VARIABLE + "=" + (i + 1));
+		}
+		return rootShell.addCommands(cmds);
+	}
+
+	/**
+	 * Run more Unix commands with super user privileges, submitted all at
+	 * once, and wait for all of them. The batch stops at the first failure.
+	 * 
+	 * @param commands
+	 *            The UNIX commands to be run.
+	 * @return True if all the commands were successfully.
+	 */
+	public boolean runUnixCommands(String... commands) {
+		boolean result = true;
+		for (Command cmd : submitUnixCommands(commands)) {
+			result &= cmd.waitForFinish();
+		}
+		return result;
+	}
+
 	/**
 	 * Check partition mount flags if contain specified mount type
 	 * 
@@ -143,6 +222,148 @@ public class UnixCommands {
 		return result;
 	}
 
+	/**
+	 * Replace a file with the content of another file, running all the needed
+	 * commands as a single shell script, on one round trip. The content is
+	 * written to a temporary file next to the target, synchronized to the
+	 * disk, given the mode and the SELinux context of the target, and only
+	 * then renamed over the target, so the target is never left half
+	 * written. The old toolbox has no stat command and no cp -p option, so
+	 * the busybox stat is tried and the mode falls back to 644 and the backup
+	 * to a plain copy. If it is required, the partition is remounted
+	 * read-write before and read-only after the replacing.
+	 * 
+	 * @param sourceFile
+	 *            The file with the new content.
+	 * @param targetFile
+	 *            The file to be replaced.
+	 * @param backupFile
+	 *            The file where a copy of the target is made before replacing,
+	 *            or null if no backup is needed.
+	 * @param partition
+	 *            The mount point of the partition to be remounted
+	 *            read-write, or null.
+	 * @return The script exit code: 0 if the file was replaced,
+	 *         {@link #MOUNT_FAILED} if the partition could not be mounted,
+	 *         other values if the file could not be replaced.
+	 */
+	public int replaceFile(String sourceFile, String targetFile,
+			String backupFile, String partition) {
+		Partition p = partition != null ? getPartition(partition) : null;
+		Command cmd = new Command(replaceFileScript(sourceFile, targetFile,
+				backupFile, p)).setTimeout(REPLACE_FILE_TIMEOUT);
+		boolean success = rootShell.addCommand(cmd).waitForFinish();
+		if (p != null) {
+			populatePartitions();
+		}
+		if (success) {
+			return 0;
+		}
+		return cmd.getExitCode() != 0 ? cmd.getExitCode() : 1;
+	}
+
+	/**
+	 * Move a file over another one, as a single batch of commands. If it is
+	 * required, the partition is remounted read-write before moving, and is
+	 * remounted read-only after, even if the file could not be moved.
+	 * 
+	 * @param sourceFile
+	 *            The file to be moved.
+	 * @param targetFile
+	 *            The file to be replaced.
+	 * @param partition
+	 *            The mount point of the partition to be remounted
+	 *            read-write, or null.
+	 * @return 0 if the file was moved, {@link #MOUNT_FAILED} if the partition
+	 *         could not be mounted, 1 if the file could not be moved.
+	 */
+	public int moveFile(String sourceFile, String targetFile, String partition) {
+		Partition p = partition != null ? getPartition(partition) : null;
+		String move = "mv -f " + quote(sourceFile) + " " + quote(targetFile);
+		List<Command> steps = p != null ? submitUnixCommands(
+				remountScript(p, "rw"), move) : submitUnixCommands(move);
+		// not part of the steps, the partition is remounted in any case
+		Command remount = p != null ? rootShell.addCommand(remountScript(p,
+				"ro")) : null;
+		int result = 0;
+		for (int i = 0; i < steps.size(); i++) {
+			if (!steps.get(i).waitForFinish() && result == 0) {
+				result = i < steps.size() - 1 ? MOUNT_FAILED : 1;
+			}
+		}
+		if (remount != null) {
+			remount.waitForFinish();
+			populatePartitions();
+		}
+		return result;
+	}
+
+	/**
+	 * Prepare the script printing a file attribute, using the busybox stat
+	 * if there is no stat command, and printing nothing if neither works.
+	 */
+	private static String statScript(String format, String file) {
+		return "stat -c " + format + " " + file + " 2>/dev/null || busybox stat -c "
+				+ format + " " + file + " 2>/dev/null";
+	}
+
+	/**
+	 * Prepare the script used to replace a file.
+	 */
+	private String replaceFileScript(String sourceFile, String targetFile,
+			String backupFile, Partition p) {
+		String target = quote(targetFile);
+		String temp = quote(targetFile + ".tmp");
+		String folder = quote(new File(targetFile).getParent());
+		StringBuilder sb = new StringBuilder("(");
+		if (p != null) {
+			sb.append(" { ").append(remountScript(p, "rw"))
+					.append(" || exit ").append(MOUNT_FAILED).append("; };");
+		}
+		sb.append(" ( mkdir -p ").append(folder)
+				.append(" && cat ").append(quote(sourceFile)).append(" > ").append(temp)
+				.append(" && if [ -e ").append(target).append(" ]; then")
+				.append(" M=$(").append(statScript("%a", target)).append(")")
+				.append("; case \"$M\" in ''|*[!0-7]*) M=644;; esac")
+				.append("; chmod $M ").append(temp)
+				.append(" && { C=$(").append(statScript("%C", target)).append(")")
+				.append("; [ -z \"$C\" ] || [ \"$C\" = \"?\" ] || chcon \"$C\" ")
+				.append(temp).append("; }");
+		if (backupFile != null) {
+			String backup = quote(backupFile);
+			sb.append(" && { cp -p ").append(target).append(' ').append(backup)
+					.append(" 2>/dev/null || cat ").append(target).append(" > ")
+					.append(backup).append("; }");
+		}
+		sb.append("; else chmod 644 ").append(temp).append("; fi")
+				.append(" && sync && mv -f ").append(temp).append(' ').append(target)
+				.append(" && sync ) || { rm -f ").append(temp).append("; false; };")
+				.append(" RC=$?;");
+		if (p != null) {
+			sb.append(' ').append(remountScript(p, "ro")).append(';');
+		}
+		sb.append(" exit $RC )");
+		return sb.toString();
+	}
+
+	/**
+	 * Prepare the remount commands, trying the busybox and toolbox versions
+	 * if the mount command fails.
+	 */
+	private String remountScript(Partition p, String mountType) {
+		String command = "mount -o " + mountType + ",remount " + p.getDevice()
+				+ " " + p.getMountPoint();
+		return command + " || busybox " + command + " || toolbox " + command
+				+ " || /system/bin/toolbox " + command;
+	}
+
+	/**
+	 * Quote a file name to be used on a shell script.
+	 */
+	private static String quote(String fileName) {
+		return "'" + fileName.replace("'", "'\\''") + "'";
+	}
+
 	/**
 	 * Unmount a partition.
 	 * 
@@ -0,0 +1,102 @@
+/**
+ * This file is part of PropEditor application.
+ * 
+ * Copyright (C) 2016 Claudiu Ciobotariu
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ro.ciubex.propeditor.properties;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests of the changeset file format.
+ * 
+ * @author Claudiu Ciobotariu
+ * 
+ */
+public class ChangesetFileTest {
+
+	private static Changeset roundTrip(Changeset changeset, boolean deflate)
+			throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ChangesetFile.write(changeset, out, deflate);
+		return ChangesetFile.read(new ByteArrayInputStream(out.toByteArray()));
+	}
+
+	/**
+	 * Build a file with one SET change which key has the provided raw length
+	 * prefix, followed by a few bytes.
+	 */
+	private static byte[] fileWithKeyLength(int... lengthPrefix)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ByteArrayOutputStream sample = new ByteArrayOutputStream();
+		ChangesetFile.write(new Changeset(), sample, false);
+		// the header without the changes count
+		bytes.write(sample.toByteArray(), 0, sample.size() - 1);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(1);
+		out.writeByte(Changeset.Operation.SET.ordinal());
+		for (int b : lengthPrefix) {
+			out.writeByte(b);
+		}
+		out.writeBytes("abc");
+		return bytes.toByteArray();
+	}
+
+	@Test
+	public void changesSurviveRoundTrip() throws IOException {
+		Changeset changeset = new Changeset();
+		changeset.set("ro.b", "\u00e9t\u00e9");
+		changeset.delete("ro.a");
+		changeset.insertComment("ro.b", "# note");
+		for (boolean deflate : new boolean[] { false, true }) {
+			List<Changeset.Change> changes = roundTrip(changeset, deflate)
+					.getChanges();
+			assertEquals(3, changes.size());
+			assertEquals("ro.a", changes.get(0).getKey());
+			assertEquals(Changeset.Operation.DELETE, changes.get(0)
+					.getOperation());
+			assertEquals("\u00e9t\u00e9", changes.get(1).getValue());
+			assertEquals("# note", changes.get(2).getValue());
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void hugeLengthIsRejected() throws IOException {
+		// 2^31 - 1 bytes declared for the key
+		ChangesetFile.read(new ByteArrayInputStream(fileWithKeyLength(0xFF,
+				0xFF, 0xFF, 0xFF, 0x07)));
+	}
+
+	@Test(expected = IOException.class)
+	public void negativeLengthIsRejected() throws IOException {
+		ChangesetFile.read(new ByteArrayInputStream(fileWithKeyLength(0xFF,
+				0xFF, 0xFF, 0xFF, 0x0F)));
+	}
+
+	@Test(expected = IOException.class)
+	public void truncatedTextIsRejected() throws IOException {
+		ChangesetFile.read(new ByteArrayInputStream(fileWithKeyLength(10)));
+	}
+}
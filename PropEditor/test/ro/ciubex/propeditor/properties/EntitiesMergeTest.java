@@ -0,0 +1,90 @@
+/**
+ * This file is part of PropEditor application.
+ * 
+ * Copyright (C) 2016 Claudiu Ciobotariu
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ro.ciubex.propeditor.properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Tests of the three-way merge of the entities lists.
+ * 
+ * @author Claudiu Ciobotariu
+ * 
+ */
+public class EntitiesMergeTest {
+
+	private static Entities load(String text) throws Exception {
+		Entities entities = new Entities();
+		entities.load(ByteBuffer.wrap(text.getBytes("ISO-8859-1")),
+				"/system/build.prop");
+		return entities;
+	}
+
+	private static String content(Entities entities, String key) {
+		return entities.getEffective(key).getContent();
+	}
+
+	@Test
+	public void editedAfterSnapshotSurvivesMerge() throws Exception {
+		Entities ours = load("a=1\nb=2\n");
+		Entities base = ours.snapshot();
+		ours.update(ours.get("a"), "a", "EDITED");
+		Entities theirs = load("a=1\nb=3\n");
+
+		EntitiesMerge merge = EntitiesMerge.merge(base, ours, theirs);
+
+		assertFalse(merge.hasConflicts());
+		assertEquals("EDITED", content(merge.getResult(), "a"));
+		assertEquals("3", content(merge.getResult(), "b"));
+		assertEquals("1", content(base, "a"));
+	}
+
+	@Test
+	public void appliedChangesetAfterSnapshotSurvivesMerge() throws Exception {
+		Entities ours = load("a=1\nb=2\n");
+		Entities base = ours.snapshot();
+		Changeset changeset = new Changeset();
+		changeset.set("a", "EDITED");
+		ours.apply(changeset);
+		Entities theirs = load("a=1\nb=3\n");
+
+		EntitiesMerge merge = EntitiesMerge.merge(base, ours, theirs);
+
+		assertEquals("EDITED", content(merge.getResult(), "a"));
+		assertEquals("3", content(merge.getResult(), "b"));
+	}
+
+	@Test
+	public void keyChangedOnBothSidesKeepsTheirValue() throws Exception {
+		Entities ours = load("a=1\n");
+		Entities base = ours.snapshot();
+		ours.update(ours.get("a"), "a", "ours");
+		Entities theirs = load("a=theirs\n");
+
+		EntitiesMerge merge = EntitiesMerge.merge(base, ours, theirs);
+
+		assertTrue(merge.hasConflicts());
+		assertEquals("theirs", content(merge.getResult(), "a"));
+	}
+}
@@ -0,0 +1,92 @@
+/**
+ * This file is part of PropEditor application.
+ * 
+ * Copyright (C) 2016 Claudiu Ciobotariu
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ro.ciubex.propeditor.properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+import org.junit.Test;
+
+/**
+ * Tests of the entities list.
+ * 
+ * @author Claudiu Ciobotariu
+ * 
+ */
+public class EntitiesTest {
+
+	private static Entities load(String text) throws Exception {
+		Entities entities = new Entities();
+		entities.load(ByteBuffer.wrap(text.getBytes("ISO-8859-1")),
+				"/system/build.prop");
+		return entities;
+	}
+
+	private static String storeChanges(Entities entities) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		entities.storeChanges(out);
+		return out.toString("ISO-8859-1");
+	}
+
+	@Test
+	public void removeKeyRemovesAllDefinitions() throws Exception {
+		Entities entities = load("ro.x=1\n# c\nro.b=2\nro.x=3\nro.c=4\nro.x=5\n");
+		assertEquals(3, entities.search("ro.x", Locale.US).size());
+
+		assertEquals(3, entities.removeKey("ro.x"));
+
+		assertNull(entities.get("ro.x"));
+		assertEquals(2, entities.size());
+		assertEquals("ro.b", entities.getProperty(0).getKey());
+		assertEquals("ro.c", entities.getProperty(1).getKey());
+		assertEquals(0, entities.search("ro.x", Locale.US).size());
+		assertEquals("# c\nro.b=2\nro.c=4\n", storeChanges(entities));
+		assertEquals(0, entities.removeKey("ro.x"));
+	}
+
+	@Test
+	public void editedLastLineKeepsTrailingBytes() throws Exception {
+		Entities entities = load("b=2\na=1\n   ");
+		entities.update(entities.get("a"), "a", "NEW");
+
+		assertEquals("b=2\na=NEW\n   ", storeChanges(entities));
+	}
+
+	@Test
+	public void editedLineKeepsMissingTerminator() throws Exception {
+		Entities entities = load("a=1\nb=2");
+		entities.update(entities.get("b"), "b", "NEW");
+
+		assertEquals("a=1\nb=NEW", storeChanges(entities));
+	}
+
+	@Test
+	public void editedLinesKeepCrLfTerminators() throws Exception {
+		Entities entities = load("a=1\r\nb=2\r\nc=3\r\n");
+		entities.update(entities.get("b"), "b", "NEW");
+		entities.add(new Entity("d", "4"));
+
+		assertEquals("a=1\r\nb=NEW\r\nc=3\r\nd=4\r\n",
+				storeChanges(entities));
+	}
+}